@@ -0,0 +1,227 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Canal d'administration du serveur en marche : socket TCP sur l'adresse de
+ * loopback seulement, une commande texte par ligne (ex avec nc localhost 5354).
+ *
+ * Chaque connexion est traitee dans son propre thread et les parcours du
+ * cache se font par lots (OffHeapRecordStore.parcourir), les requetes DNS
+ * continuent donc d'etre servies pendant une commande.
+ */
+public class AdminServer extends Thread {
+
+    private static final String AIDE = "Commandes :\n"
+            + "  stats              compteurs du serveur\n"
+            + "  dump               contenu des caches de chaque vue\n"
+            + "  search <motif>     entrees des caches dont le nom contient le motif\n"
+            + "  zones              delegations connues du resolveur iteratif\n"
+            + "  flush <nom>        retire un nom des caches et des fichiers DNS (redemande au serveur amont)\n"
+            + "  flushtree <zone>   retire une zone et ses sous-domaines des caches, des fichiers DNS et des delegations\n"
+            + "  flushall           vide les caches et les delegations (les fichiers DNS ne sont pas touches)\n"
+            + "  resetstats         remet les compteurs a zero\n"
+            + "  quit";
+
+    private final UDPReceiver receveur;
+    private final int port;
+
+    /**
+     * Constructeur
+     * @param receveur : serveur a administrer
+     * @param port : port TCP d'ecoute, sur l'adresse de loopback
+     */
+    public AdminServer(UDPReceiver receveur, int port) {
+        super("AdminServer");
+        this.receveur = receveur;
+        this.port = port;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket ecoute = new ServerSocket(port, 8, InetAddress.getLoopbackAddress())) {
+            System.out.println("Administration en attente sur " + ecoute.getLocalSocketAddress());
+            while (!isInterrupted()) {
+                final Socket connexion = ecoute.accept();
+                Thread session = new Thread(() -> traiter(connexion), "AdminSession");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Canal d'administration arrete :");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private void traiter(Socket connexion) {
+        try (Socket s = connexion;
+                BufferedReader entree = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                PrintWriter sortie = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.US_ASCII), true)) {
+            String ligne;
+            while ((ligne = entree.readLine()) != null) {
+                String[] mots = ligne.trim().split("\\s+", 2);
+                String commande = mots[0].toLowerCase(Locale.ROOT);
+                String argument = (mots.length > 1) ? mots[1].trim() : null;
+                if (commande.equals("quit")) {
+                    return;
+                }
+                executer(commande, argument, sortie);
+                sortie.println(".");
+            }
+        } catch (IOException e) {
+            System.err.println("Session d'administration interrompue : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Execute une commande, chaque reponse se termine par une ligne "."
+     */
+    void executer(String commande, String argument, final PrintWriter sortie) {
+        List<View> vues = receveur.getVues();
+        IterativeResolver resolver = receveur.getResolver();
+
+        switch (commande) {
+            case "stats":
+                ServerStats stats = receveur.getStats();
+                sortie.println("duree " + stats.getDuree() + "s");
+                for (ServerStats.Compteur compteur : ServerStats.Compteur.values()) {
+                    sortie.println(compteur.name().toLowerCase(Locale.ROOT) + " " + stats.get(compteur));
+                }
+                for (View vue : vues) {
+                    OffHeapRecordStore cache = vue.getCache();
+                    if (cache != null) {
+                        String suffixe = vue.getNom().equals(View.DEFAUT) ? "" : "_" + vue.getNom();
+                        sortie.println("cache_entrees" + suffixe + " " + cache.getTaille() + "/" + cache.getCapacite());
+                        sortie.println("cache_evictions" + suffixe + " " + cache.getEvictions());
+                        sortie.println("cache_memoire" + suffixe + " " + cache.getMemoire());
+                    }
+                }
+                if (receveur.getSocketsAmont() != null) {
+                    sortie.println("amont_rejetees " + receveur.getSocketsAmont().getRejetees());
+                    sortie.println("amont_renouvellements " + receveur.getSocketsAmont().getRenouvellements());
+                }
+                for (RttEstimator.Etat etat : receveur.getEstimateurRtt().lister()) {
+                    sortie.println("amont " + etat.getServeur().getAddress().getHostAddress() + ":" + etat.getServeur().getPort()
+                            + " srtt=" + etat.getSrtt() + " rttvar=" + etat.getRttvar() + " rto=" + etat.getRto());
+                }
+                if (resolver != null) {
+                    sortie.println("delegations " + resolver.getDelegations().getTaille());
+                }
+                if (receveur.getJournal() != null) {
+                    sortie.println("journal_perdues " + receveur.getJournal().getPerdues());
+                }
+                if (receveur.getBlocklist() != null) {
+                    sortie.println("blocklist " + receveur.getBlocklist().getTaille());
+                }
+                break;
+            case "dump":
+            case "search":
+                if (commande.equals("search") && argument == null) {
+                    sortie.println("ERREUR motif manquant");
+                    break;
+                }
+                final String motif = (argument == null) ? null : argument.toLowerCase(Locale.ROOT);
+                final long maintenant = System.currentTimeMillis();
+                for (View vue : vues) {
+                    if (vue.getCache() == null) {
+                        continue;
+                    }
+                    sortie.println("# vue " + vue.getNom());
+                    vue.getCache().parcourir((entree) -> {
+                        if (motif == null || entree.nom.contains(motif)) {
+                            sortie.println(entree.nom + " " + String.join(",", entree.adresses)
+                                    + " ttl=" + (entree.expiration - maintenant) / 1000);
+                        }
+                    });
+                }
+                break;
+            case "zones":
+                if (resolver == null) {
+                    sortie.println("ERREUR resolution iterative desactivee");
+                    break;
+                }
+                for (DelegationCache.Delegation delegation : resolver.getDelegations().lister()) {
+                    sortie.println(delegation.getZone() + " " + delegation.getServeurs()
+                            + " ttl=" + (delegation.getExpiration() - System.currentTimeMillis()) / 1000);
+                }
+                break;
+            case "flush":
+                if (argument == null) {
+                    sortie.println("ERREUR nom manquant");
+                } else {
+                    int retires = 0;
+                    for (View vue : vues) {
+                        if (vue.getCache() != null && vue.getCache().retirer(argument)) {
+                            retires++;
+                        }
+                    }
+                    retirerDesFichiers(vues, argument, false, sortie);
+                    sortie.println("OK " + retires);
+                }
+                break;
+            case "flushtree":
+            case "flushall":
+                String zone = commande.equals("flushall") ? "" : argument;
+                if (zone == null) {
+                    sortie.println("ERREUR zone manquante");
+                    break;
+                }
+                int retirees = 0;
+                for (View vue : vues) {
+                    if (vue.getCache() != null) {
+                        retirees += vue.getCache().retirerSousArbre(zone);
+                    }
+                }
+                if (resolver != null) {
+                    retirees += resolver.getDelegations().retirerSousArbre(zone);
+                }
+                if (commande.equals("flushtree")) {
+                    retirerDesFichiers(vues, zone, true, sortie);
+                }
+                sortie.println("OK " + retirees);
+                break;
+            case "resetstats":
+                receveur.getStats().reinitialiser();
+                sortie.println("OK");
+                break;
+            case "help":
+            case "":
+                sortie.println(AIDE);
+                break;
+            default:
+                sortie.println("ERREUR commande inconnue : " + commande);
+                sortie.println(AIDE);
+        }
+    }
+
+    /**
+     * Retire un nom des fichiers DNS des vues : les reponses amont y sont
+     * aussi enregistrees, sans les retirer le nom serait relu dans le fichier
+     * au lieu d'etre redemande au serveur amont
+     */
+    private void retirerDesFichiers(List<View> vues, String nom, boolean sousArbre, PrintWriter sortie) {
+        int lignes = 0;
+        for (View vue : vues) {
+            if (vue.getDNSFile() == null) {
+                continue;
+            }
+            try {
+                lignes += DNSFileCompactor.retirer(vue.getDNSFile(), nom, sousArbre);
+            } catch (IOException e) {
+                sortie.println("ERREUR " + vue.getDNSFile() + " : " + e.getMessage());
+            }
+        }
+        sortie.println("fichier_lignes " + lignes);
+    }
+}
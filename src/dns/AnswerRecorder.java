@@ -1,8 +1,15 @@
 package dns;
 
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /***
  * Cette classe est utilise pour enregistrer une reponse
@@ -12,6 +19,13 @@ import java.io.IOException;
  * @author lighta, Simon
  */
 public class AnswerRecorder {
+	/** Verrous partages par fichier (ecriture et compaction) */
+	private static final ConcurrentHashMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+	/** Couples "hostname ip" deja dans chaque fichier, lus une fois puis tenus a jour (sous le verrou du fichier) */
+	private static final ConcurrentHashMap<String, Set<String>> INDEX = new ConcurrentHashMap<>();
+	/** Nombre de reecritures de chaque fichier, pour qu'une compaction en cours detecte un remplacement */
+	private static final ConcurrentHashMap<String, Long> REECRITURES = new ConcurrentHashMap<>();
+
 	private String filename = null; //path du fichier a utiliser
 
 	/**
@@ -31,6 +45,117 @@ public class AnswerRecorder {
 		return filename;
 	}
 
+	/**
+	 * Verrou a prendre pour toute modification du fichier
+	 * (ajout ou reecriture par le DNSFileCompactor)
+	 * @param filename : fichier DNS
+	 * @return l'objet de synchronisation associe au fichier
+	 */
+	public static Object getLock(String filename) {
+		String key = new File(filename).getAbsolutePath();
+		Object lock = LOCKS.get(key);
+		if (lock == null) {
+			Object nouveau = new Object();
+			lock = LOCKS.putIfAbsent(key, nouveau);
+			if (lock == null) {
+				lock = nouveau;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Forme canonique d'un hostname (minuscule, sans point final)
+	 * pour que le meme nom ne soit pas enregistre sous plusieurs formes.
+	 * Seules les lettres A-Z sont mises en minuscule, comme dans le protocole
+	 * et dans les cles du cache (DomainBlocklist.empreinte) : un octet hors
+	 * ASCII d'une question garde la meme cle partout.
+	 * @param hostname : NS (ex Google.com.)
+	 * @return hostname normalise (ex google.com)
+	 */
+	public static String normaliser(String hostname) {
+		String nom = hostname.trim();
+		int fin = nom.length();
+		while (fin > 0 && nom.charAt(fin - 1) == '.') {
+			fin--;
+		}
+		char[] caracteres = new char[fin];
+		for (int i = 0; i < fin; i++) {
+			char c = nom.charAt(i);
+			caracteres[i] = (c >= 'A' && c <= 'Z') ? (char) (c + 'a' - 'A') : c;
+		}
+		return new String(caracteres);
+	}
+
+	/**
+	 * Oublie l'index du fichier, relu au prochain ajout.
+	 * A appeler sous le verrou du fichier apres une reecriture (DNSFileCompactor)
+	 * @param filename : fichier DNS
+	 */
+	public static void invaliderIndex(String filename) {
+		String key = new File(filename).getAbsolutePath();
+		INDEX.remove(key);
+		REECRITURES.merge(key, 1L, Long::sum);
+	}
+
+	/**
+	 * A lire sous le verrou du fichier
+	 * @param filename : fichier DNS
+	 * @return nombre de reecritures du fichier depuis le demarrage
+	 */
+	public static long getReecritures(String filename) {
+		return REECRITURES.getOrDefault(new File(filename).getAbsolutePath(), 0L);
+	}
+
+	/**
+	 * Ajoute la correspondance seulement si elle n'est pas deja dans le fichier,
+	 * sans relire le fichier (index en memoire)
+	 * @param hostname : NS (ex google.com)
+	 * @param adresseIP : Ip resolvant le NS
+	 * @return true si la correspondance a ete ajoutee
+	 */
+	public boolean StartRecordIfAbsent(String hostname, String adresseIP) {
+		synchronized (getLock(filename)) {
+			String key = new File(filename).getAbsolutePath();
+			Set<String> index = INDEX.get(key);
+			if (index == null) {
+				index = lireIndex();
+				INDEX.put(key, index);
+			}
+			if (!index.add(normaliser(hostname) + " " + adresseIP)) {
+				return false;
+			}
+			StartRecord(hostname, adresseIP);
+			return true;
+		}
+	}
+
+	/**
+	 * Lit les couples du fichier, en ignorant la premiere ligne (en-tete) comme QueryFinder
+	 */
+	private Set<String> lireIndex() {
+		Set<String> index = new HashSet<>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(filename));
+			try {
+				String ligne = reader.readLine();
+				while ((ligne = reader.readLine()) != null) {
+					String[] champs = ligne.split(" ");
+					if (champs.length >= 2) {
+						index.add(normaliser(champs[0]) + " " + champs[1]);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (FileNotFoundException e) {
+			//fichier pas encore cree : index vide
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return index;
+	}
+
 	/**
 	 * @param hostname : NS (ex google.com)
 	 * @param adresseIP : Ip resolvant le NS
@@ -40,13 +165,15 @@ public class AnswerRecorder {
 			System.out.println("Invalid adresseIP to write ("+adresseIP+")");
 			return; 	
 		}
-		try {
-			FileWriter writerFichierSource = new FileWriter(filename,true);		
-			writerFichierSource.write(hostname + " " + adresseIP);
-			writerFichierSource.write("\r\n");
-			writerFichierSource.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		synchronized (getLock(filename)) {
+			try {
+				FileWriter writerFichierSource = new FileWriter(filename,true);
+				writerFichierSource.write(normaliser(hostname) + " " + adresseIP);
+				writerFichierSource.write("\r\n");
+				writerFichierSource.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 }
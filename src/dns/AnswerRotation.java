@@ -0,0 +1,300 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ordre des adresses dans les reponses d'un nom qui en a plusieurs, pour
+ * repartir les clients entre les serveurs au lieu de tous les envoyer sur la
+ * premiere adresse du fichier.
+ *
+ * Toutes les permutations sont calculees a l'avance : pour n adresses, les n
+ * rotations (tourniquet) et NB_ALEATOIRES permutations tirees au hasard ; pour
+ * un nom pondere, une sequence ou chaque adresse vient en tete selon son
+ * poids. Une reponse ne fait que choisir une permutation avec un compteur
+ * atomique, puis la passe a UDPAnswerPacketCreator : ni verrou ni allocation
+ * de plus que la reponse elle-meme.
+ *
+ * Un nom configure a son propre compteur. Les autres se partagent une table
+ * de NB_COMPTEURS compteurs indexee par l'empreinte du nom (deja melangee) :
+ * deux noms sur le meme compteur interroges a tour de role ne tourneraient
+ * plus, la table est donc assez grande pour que ce soit rare.
+ */
+public class AnswerRotation {
+
+    public enum Politique {
+        FIXE, //ordre de la liste
+        TOURNIQUET, //chaque reponse commence par l'adresse suivante
+        PONDERE, //l'adresse en tete est choisie selon son poids
+        ALEATOIRE //permutation au hasard
+    }
+
+    public static final int MAX_ADRESSES = 16; //au-dela, l'ordre de la liste est garde
+    private static final int NB_ALEATOIRES = 64;
+    private static final int MAX_SEQUENCE = 4096; //longueur maximale d'une sequence ponderee
+    private static final int NB_COMPTEURS = 1 << 16; //compteurs des noms sans regle, par empreinte
+
+    /**
+     * Politique propre a un nom
+     */
+    private static final class Regle {
+
+        final Politique politique;
+        final List<String> adresses; //adresses ponderees (PONDERE seulement)
+        final int[][] sequence; //permutations de adresses, une par pas (PONDERE seulement)
+        final AtomicLong compteur = new AtomicLong(); //reponses donnees pour ce nom
+
+        Regle(Politique politique, List<String> adresses, int[][] sequence) {
+            this.politique = politique;
+            this.adresses = adresses;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Politique defaut;
+    private final int[][][] rotations = new int[MAX_ADRESSES + 1][][]; //[n][k] : rotation de k
+    private final int[][][] aleatoires = new int[MAX_ADRESSES + 1][][];
+    private final AtomicLongArray compteurs = new AtomicLongArray(NB_COMPTEURS);
+    private long[] empreintes = new long[0]; //triees, pour la recherche des regles
+    private Regle[] regles = new Regle[0];
+
+    /**
+     * Constructeur
+     * @param defaut : politique des noms sans regle
+     */
+    public AnswerRotation(Politique defaut) {
+        this.defaut = defaut;
+        Random hasard = new Random();
+        for (int n = 1; n <= MAX_ADRESSES; n++) {
+            rotations[n] = new int[n][n];
+            for (int k = 0; k < n; k++) {
+                for (int i = 0; i < n; i++) {
+                    rotations[n][k][i] = (k + i) % n;
+                }
+            }
+            aleatoires[n] = new int[NB_ALEATOIRES][];
+            for (int k = 0; k < NB_ALEATOIRES; k++) {
+                int[] permutation = rotations[n][0].clone();
+                for (int i = n - 1; i > 0; i--) { //Fisher-Yates
+                    int j = hasard.nextInt(i + 1);
+                    int t = permutation[i];
+                    permutation[i] = permutation[j];
+                    permutation[j] = t;
+                }
+                aleatoires[n][k] = permutation;
+            }
+        }
+    }
+
+    /**
+     * Cree la reponse en ordonnant les adresses selon la politique du nom
+     * @param requete : paquet de la requete
+     * @param hostname : nom demande
+     * @param adresses : adresses du nom
+     * @param ttl : TTL des enregistrements, en secondes
+     * @return le paquet de reponse
+     */
+    public byte[] creerReponse(byte[] requete, String hostname, List<String> adresses, long ttl) {
+        int n = adresses.size();
+        if (n < 2 || n > MAX_ADRESSES) {
+            return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, adresses, null, ttl);
+        }
+        long empreinte = DomainBlocklist.empreinte(hostname, 0);
+        int position = Arrays.binarySearch(empreintes, empreinte);
+        Regle regle = (position >= 0) ? regles[position] : null;
+        Politique politique = (regle != null) ? regle.politique : defaut;
+
+        switch (politique) {
+            case PONDERE:
+                if (regle != null && memesAdresses(adresses, regle.adresses)) {
+                    int[] ordre = regle.sequence[(int) (regle.compteur.getAndIncrement() % regle.sequence.length)];
+                    return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, regle.adresses, ordre, ttl);
+                }
+                // *Pas de poids pour ce nom, ou les adresses ont change depuis la configuration : tourniquet
+                return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, adresses,
+                        rotations[n][(int) (suivant(regle, empreinte) % n)], ttl);
+            case TOURNIQUET:
+                return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, adresses,
+                        rotations[n][(int) (suivant(regle, empreinte) % n)], ttl);
+            case ALEATOIRE:
+                return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, adresses,
+                        aleatoires[n][ThreadLocalRandom.current().nextInt(NB_ALEATOIRES)], ttl);
+            default:
+                return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(requete, adresses, null, ttl);
+        }
+    }
+
+    /**
+     * @return la valeur du compteur du nom, puis l'incremente
+     */
+    private long suivant(Regle regle, long empreinte) {
+        return (regle != null) ? regle.compteur.getAndIncrement()
+                : compteurs.getAndIncrement((int) empreinte & (NB_COMPTEURS - 1));
+    }
+
+    /**
+     * @return true si les deux listes ont les memes adresses, dans n'importe quel ordre
+     */
+    private static boolean memesAdresses(List<String> adresses, List<String> configurees) {
+        if (adresses.size() != configurees.size()) {
+            return false;
+        }
+        for (int i = 0; i < configurees.size(); i++) {
+            if (!adresses.contains(configurees.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ajoute la politique d'un nom. Doit etre appele avant le lancement du serveur
+     * @param nom : nom exact (les sous-domaines ne sont pas concernes)
+     * @param politique : politique du nom
+     * @param adresses : adresses ponderees (PONDERE seulement, sinon null)
+     * @param poids : poids de chaque adresse (PONDERE seulement, sinon null)
+     */
+    public void ajouter(String nom, Politique politique, List<String> adresses, int[] poids) {
+        Regle regle;
+        if (politique == Politique.PONDERE) {
+            if (adresses.size() < 1 || adresses.size() > MAX_ADRESSES) {
+                throw new IllegalArgumentException("Entre 1 et " + MAX_ADRESSES + " adresses ponderees : " + nom);
+            }
+            regle = new Regle(politique, new ArrayList<>(adresses), sequencePonderee(poids));
+        } else {
+            regle = new Regle(politique, null, null);
+        }
+
+        long empreinte = DomainBlocklist.empreinte(nom, 0);
+        int position = Arrays.binarySearch(empreintes, empreinte);
+        if (position >= 0) {
+            regles[position] = regle;
+            return;
+        }
+        position = -position - 1;
+        long[] nouvellesEmpreintes = new long[empreintes.length + 1];
+        Regle[] nouvellesRegles = new Regle[regles.length + 1];
+        System.arraycopy(empreintes, 0, nouvellesEmpreintes, 0, position);
+        System.arraycopy(regles, 0, nouvellesRegles, 0, position);
+        nouvellesEmpreintes[position] = empreinte;
+        nouvellesRegles[position] = regle;
+        System.arraycopy(empreintes, position, nouvellesEmpreintes, position + 1, empreintes.length - position);
+        System.arraycopy(regles, position, nouvellesRegles, position + 1, regles.length - position);
+        empreintes = nouvellesEmpreintes;
+        regles = nouvellesRegles;
+    }
+
+    /**
+     * Sequence des permutations d'un nom pondere, par l'algorithme du
+     * tourniquet pondere lisse (smooth weighted round-robin) : chaque adresse
+     * vient en tete autant de fois que son poids, sans rafale sur la plus lourde.
+     * Les autres adresses suivent dans l'ordre de la configuration.
+     */
+    private static int[][] sequencePonderee(int[] poids) {
+        int n = poids.length;
+        int total = 0;
+        for (int p : poids) {
+            if (p < 0) {
+                throw new IllegalArgumentException("Poids negatif");
+            }
+            total += p;
+        }
+        if (total == 0 || total > MAX_SEQUENCE) {
+            throw new IllegalArgumentException("La somme des poids doit etre entre 1 et " + MAX_SEQUENCE);
+        }
+        int[][] sequence = new int[total][];
+        int[] courant = new int[n];
+        for (int pas = 0; pas < total; pas++) {
+            int tete = 0;
+            for (int i = 0; i < n; i++) {
+                courant[i] += poids[i];
+                if (courant[i] > courant[tete]) {
+                    tete = i;
+                }
+            }
+            courant[tete] -= total;
+
+            int[] ordre = new int[n];
+            ordre[0] = tete;
+            for (int i = 0, j = 1; i < n; i++) {
+                if (i != tete) {
+                    ordre[j++] = i;
+                }
+            }
+            sequence[pas] = ordre;
+        }
+        return sequence;
+    }
+
+    /**
+     * Lit un fichier de politiques, une par ligne :
+     *   nom fixe|tourniquet|aleatoire
+     *   nom pondere ip=poids[,ip=poids...]
+     * ex : api.interne pondere 10.0.0.1=3,10.0.0.2=1
+     * Les lignes vides et celles commencant par # sont ignorees.
+     * @param fichier : fichier de politiques
+     * @param defaut : politique des noms absents du fichier
+     * @return les politiques lues
+     * @throws IOException si le fichier est illisible ou une ligne invalide
+     */
+    public static AnswerRotation charger(String fichier, Politique defaut) throws IOException {
+        AnswerRotation rotation = new AnswerRotation(defaut);
+        BufferedReader reader = new BufferedReader(new FileReader(fichier));
+        try {
+            String ligne;
+            int numero = 0;
+            while ((ligne = reader.readLine()) != null) {
+                numero++;
+                ligne = ligne.trim();
+                if (ligne.isEmpty() || ligne.startsWith("#")) {
+                    continue;
+                }
+                String[] champs = ligne.split("\\s+");
+                try {
+                    Politique politique = lirePolitique(champs[1]);
+                    if (politique == Politique.PONDERE) {
+                        String[] paires = champs[2].split(",");
+                        List<String> adresses = new ArrayList<>();
+                        int[] poids = new int[paires.length];
+                        for (int i = 0; i < paires.length; i++) {
+                            int egal = paires[i].indexOf('=');
+                            adresses.add(paires[i].substring(0, egal));
+                            poids[i] = Integer.parseInt(paires[i].substring(egal + 1));
+                        }
+                        rotation.ajouter(champs[0], politique, adresses, poids);
+                    } else {
+                        rotation.ajouter(champs[0], politique, null, null);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException(fichier + ":" + numero + " : ligne invalide (" + e.getMessage() + ")");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rotation;
+    }
+
+    /**
+     * @param nom : fixe, tourniquet, pondere ou aleatoire
+     */
+    public static Politique lirePolitique(String nom) {
+        return Politique.valueOf(nom.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return nombre de noms ayant leur propre politique
+     */
+    public int getTaille() {
+        return regles.length;
+    }
+}
@@ -0,0 +1,56 @@
+package dns;
+
+/**
+ * Filtre de Bloom sur des empreintes 64 bits deja calculees.
+ * Un "non" est certain, un "oui" doit etre confirme ailleurs.
+ *
+ * Les k positions sont derivees de l'empreinte par double hachage
+ * (h1 + i * h2), ce qui evite de recalculer k fonctions de hachage.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final long nbBits;
+    private final int nbHash;
+
+    /**
+     * Constructeur
+     * @param nbElements : nombre d'elements prevus
+     * @param bitsParElement : taille du filtre par element (10 bits ~ 1% de faux positifs)
+     */
+    public BloomFilter(long nbElements, int bitsParElement) {
+        long taille = Math.max(64, nbElements * bitsParElement);
+        this.bits = new long[(int) ((taille + 63) >>> 6)];
+        this.nbBits = (long) bits.length << 6;
+        // k optimal = ln(2) * m / n
+        this.nbHash = Math.max(1, (int) Math.round(bitsParElement * 0.693));
+    }
+
+    public void ajouter(long empreinte) {
+        long h1 = empreinte;
+        long h2 = (empreinte >>> 32) | 1;
+        for (int i = 0; i < nbHash; i++) {
+            long position = ((h1 + i * h2) & Long.MAX_VALUE) % nbBits;
+            bits[(int) (position >>> 6)] |= 1L << position;
+        }
+    }
+
+    public boolean contientPeutEtre(long empreinte) {
+        long h1 = empreinte;
+        long h2 = (empreinte >>> 32) | 1;
+        for (int i = 0; i < nbHash; i++) {
+            long position = ((h1 + i * h2) & Long.MAX_VALUE) % nbBits;
+            if ((bits[(int) (position >>> 6)] & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return taille du filtre en octets
+     */
+    public long getTaille() {
+        return (long) bits.length * 8;
+    }
+}
@@ -0,0 +1,334 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread de fond qui reecrit periodiquement le fichier DNS sans les doublons
+ * exacts (meme hostname, a la casse pres, et meme adresse), pendant que le
+ * serveur continue de repondre. La premiere occurrence d'un couple est gardee
+ * a sa place ; les lignes qui ne sont pas "hostname IPv4" sont recopiees
+ * telles quelles.
+ *
+ * La reecriture se fait dans un fichier temporaire du meme repertoire, puis
+ * par un renommage atomique : un arret brutal laisse toujours soit l'ancien
+ * fichier, soit le nouveau, jamais un fichier tronque.
+ *
+ * Des limites de taille peuvent etre activees (desactivees par defaut) : seules
+ * les maxAdressesParHost adresses les plus recentes d'un hostname et les
+ * maxEntrees lignes les plus recentes du fichier sont alors conservees. Elles
+ * retirent de vrais enregistrements, y compris ceux ecrits a la main.
+ */
+public class DNSFileCompactor extends Thread {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final String filename; //fichier DNS a compacter
+    private final long intervalle; //delai entre deux passes (ms)
+    private int maxAdressesParHost = 0; //0 = sans limite
+    private int maxEntrees = 0; //0 = sans limite
+
+    private long tailleDernierePasse = -1; //taille apres la derniere reecriture
+
+    /**
+     * Constructeur
+     * @param filename : fichier DNS partage avec AnswerRecorder
+     * @param intervalle : delai entre deux compactions, en millisecondes
+     */
+    public DNSFileCompactor(String filename, long intervalle) {
+        super("DNSFileCompactor");
+        this.filename = filename;
+        this.intervalle = intervalle;
+        setDaemon(true);
+    }
+
+    /**
+     * @param max : adresses gardees par hostname, les plus recentes (0 = sans limite)
+     */
+    public void setMaxAdressesParHost(int max) {
+        this.maxAdressesParHost = max;
+    }
+
+    /**
+     * @param max : lignes gardees dans le fichier, les plus recentes (0 = sans limite)
+     */
+    public void setMaxEntrees(int max) {
+        this.maxEntrees = max;
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(intervalle);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                compacter();
+            } catch (AtomicMoveNotSupportedException e) {
+                // *Sans renommage atomique la reecriture n'est pas sure : arreter la compaction
+                System.err.println("Compaction du fichier DNS arretee, renommage atomique impossible : " + filename);
+                new File(e.getFile()).delete();
+                return;
+            } catch (IOException e) {
+                System.err.println("Compaction du fichier DNS impossible :");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Effectue une passe de compaction
+     * @return nombre de lignes retirees (0 si le fichier n'a pas change)
+     * @throws IOException
+     */
+    public int compacter() throws IOException {
+        File fichier = new File(filename);
+        long taille;
+        long reecritures;
+        synchronized (AnswerRecorder.getLock(filename)) {
+            taille = fichier.length(); //toujours sur une fin de ligne
+            reecritures = AnswerRecorder.getReecritures(filename);
+        }
+        if (!fichier.exists() || taille == tailleDernierePasse) {
+            return 0;
+        }
+
+        // *Lecture d'un instantane du fichier, sans bloquer les ecritures
+        byte[] contenu = lire(fichier, 0, taille);
+        List<String> lignes = decouper(contenu);
+        if (lignes.isEmpty()) {
+            return 0;
+        }
+
+        // *La premiere ligne est ignoree par QueryFinder (en-tete), on la garde telle quelle
+        String entete = lignes.get(0);
+        LinkedHashMap<String, String> entrees = dedoublonner(lignes.subList(1, lignes.size()));
+        int retirees = lignes.size() - 1 - entrees.size();
+        if (retirees == 0) {
+            tailleDernierePasse = taille;
+            return 0;
+        }
+
+        File dossier = fichier.getAbsoluteFile().getParentFile();
+        File temporaire = File.createTempFile(fichier.getName(), ".tmp", dossier);
+        try {
+            FileOutputStream sortie = new FileOutputStream(temporaire);
+            try {
+                Writer writer = new OutputStreamWriter(sortie, CHARSET);
+                writer.write(entete);
+                writer.write("\r\n");
+                for (String ligne : entrees.values()) {
+                    writer.write(ligne);
+                    writer.write("\r\n");
+                }
+                writer.flush();
+
+                // *Les lignes ajoutees pendant la reecriture sont recopiees sous verrou, puis on renomme
+                synchronized (AnswerRecorder.getLock(filename)) {
+                    long tailleFinale = fichier.length();
+                    if (tailleFinale < taille || AnswerRecorder.getReecritures(filename) != reecritures) {
+                        return 0; //fichier remplace entre temps, on abandonne cette passe
+                    }
+                    if (tailleFinale > taille) {
+                        sortie.write(lire(fichier, taille, tailleFinale));
+                    }
+                    sortie.getFD().sync();
+                    sortie.close();
+                    remplacer(temporaire, fichier);
+                    AnswerRecorder.invaliderIndex(filename);
+                    tailleDernierePasse = fichier.length();
+                }
+            } finally {
+                sortie.close();
+            }
+        } finally {
+            if (temporaire.exists()) {
+                temporaire.delete();
+            }
+        }
+
+        System.out.println("Compaction de " + filename + " : " + retirees + " ligne(s) retiree(s)");
+        return retirees;
+    }
+
+    /**
+     * Retire du fichier les lignes d'un nom, ou d'une zone et de ses
+     * sous-domaines, pour que le nom soit redemande au serveur amont
+     * (commandes flush et flushtree du canal d'administration). Le fichier
+     * est reecrit sous son verrou : les ajouts attendent la fin de la passe.
+     * @param filename : fichier DNS
+     * @param nom : nom a retirer (ex example.com)
+     * @param sousArbre : retirer aussi les sous-domaines (ex www.example.com)
+     * @return nombre de lignes retirees
+     * @throws IOException
+     */
+    public static int retirer(String filename, String nom, boolean sousArbre) throws IOException {
+        String cible = AnswerRecorder.normaliser(nom);
+        File fichier = new File(filename);
+        synchronized (AnswerRecorder.getLock(filename)) {
+            if (!fichier.exists()) {
+                return 0;
+            }
+            List<String> lignes = decouper(lire(fichier, 0, fichier.length()));
+            List<String> gardees = new ArrayList<>();
+            for (int i = 0; i < lignes.size(); i++) {
+                String ligne = lignes.get(i);
+                String host = AnswerRecorder.normaliser(ligne.trim().split("\\s+")[0]);
+                if (i == 0 || !(host.equals(cible) || (sousArbre && host.endsWith("." + cible)))) {
+                    gardees.add(ligne); //la premiere ligne est l'en-tete
+                }
+            }
+            int retirees = lignes.size() - gardees.size();
+            if (retirees == 0) {
+                return 0;
+            }
+
+            File temporaire = File.createTempFile(fichier.getName(), ".tmp", fichier.getAbsoluteFile().getParentFile());
+            try {
+                FileOutputStream sortie = new FileOutputStream(temporaire);
+                try {
+                    Writer writer = new OutputStreamWriter(sortie, CHARSET);
+                    for (String ligne : gardees) {
+                        writer.write(ligne);
+                        writer.write("\r\n");
+                    }
+                    writer.flush();
+                    sortie.getFD().sync();
+                } finally {
+                    sortie.close();
+                }
+                remplacer(temporaire, fichier);
+                AnswerRecorder.invaliderIndex(filename);
+            } finally {
+                if (temporaire.exists()) {
+                    temporaire.delete();
+                }
+            }
+            return retirees;
+        }
+    }
+
+    /**
+     * Conserve la premiere occurrence de chaque couple (hostname, ip) et
+     * toutes les autres lignes, dans l'ordre du fichier, puis applique les
+     * limites de taille si elles sont activees
+     * @return les lignes gardees, par cle (hostname normalise + ip, ou numero pour les autres lignes)
+     */
+    private LinkedHashMap<String, String> dedoublonner(List<String> lignes) {
+        LinkedHashMap<String, String> entrees = new LinkedHashMap<>();
+        LinkedHashMap<String, Integer> parHost = new LinkedHashMap<>();
+
+        for (int i = 0; i < lignes.size(); i++) {
+            String ligne = lignes.get(i);
+            String[] champs = ligne.trim().split("\\s+");
+            if (champs.length != 2 || !estIPv4(champs[1])) {
+                entrees.put("#" + i, ligne); //pas un enregistrement A : recopie sans y toucher
+                continue;
+            }
+            String host = AnswerRecorder.normaliser(champs[0]);
+            String cle = host + " " + champs[1];
+            if (!entrees.containsKey(cle)) {
+                Integer nb = parHost.get(host);
+                parHost.put(host, nb == null ? 1 : nb + 1);
+                entrees.put(cle, ligne);
+            }
+        }
+
+        // *Retire les adresses les plus anciennes des hostnames qui en ont trop
+        Iterator<Map.Entry<String, String>> it = entrees.entrySet().iterator();
+        while (maxAdressesParHost > 0 && it.hasNext()) {
+            String cle = it.next().getKey();
+            if (cle.startsWith("#")) {
+                continue;
+            }
+            String host = cle.split(" ")[0];
+            int nb = parHost.get(host);
+            if (nb > maxAdressesParHost) {
+                parHost.put(host, nb - 1);
+                it.remove();
+            }
+        }
+
+        // *Retire les entrees les plus anciennes du fichier
+        it = entrees.entrySet().iterator();
+        int enTrop = (maxEntrees > 0) ? entrees.size() - maxEntrees : 0;
+        while (enTrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        return entrees;
+    }
+
+    static boolean estIPv4(String adresse) {
+        String[] octets = adresse.split("\\.");
+        if (octets.length != 4) {
+            return false;
+        }
+        for (String octet : octets) {
+            if (octet.isEmpty() || octet.length() > 3) {
+                return false;
+            }
+            for (int i = 0; i < octet.length(); i++) {
+                if (!Character.isDigit(octet.charAt(i))) {
+                    return false;
+                }
+            }
+            if (Integer.parseInt(octet) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] lire(File fichier, long debut, long fin) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fichier, "r");
+        try {
+            byte[] data = new byte[(int) (fin - debut)];
+            raf.seek(debut);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> decouper(byte[] contenu) throws IOException {
+        List<String> lignes = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(contenu), CHARSET));
+        String ligne;
+        while ((ligne = reader.readLine()) != null) {
+            lignes.add(ligne);
+        }
+        return lignes;
+    }
+
+    /**
+     * Renommage atomique du fichier temporaire (dans le meme repertoire que la
+     * cible) sur le fichier DNS. Pas de repli sur une copie : un arret pendant
+     * la copie laisserait un fichier tronque.
+     * @throws AtomicMoveNotSupportedException si le systeme de fichiers ne le permet pas
+     */
+    private static void remplacer(File source, File cible) throws IOException {
+        Files.move(source.toPath(), cible.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
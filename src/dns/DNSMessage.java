@@ -0,0 +1,263 @@
+package dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lecture et creation de messages DNS complets (en-tete, question et
+ * sections reponse / autorite / additionnel), avec gestion de la
+ * compression des noms. Utilise par la resolution iterative, qui doit
+ * suivre les referrals au lieu de seulement extraire des adresses.
+ */
+public class DNSMessage {
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int CLASS_IN = 1;
+
+    public static final int RCODE_OK = 0;
+
+    /**
+     * Un enregistrement (resource record) d'une des sections du message.
+     * donnee contient l'adresse pour un A, le nom cible pour un NS ou un CNAME,
+     * et null pour les autres types
+     */
+    public static class Enregistrement {
+
+        public final String nom;
+        public final int type;
+        public final long ttl;
+        public final String donnee;
+
+        Enregistrement(String nom, int type, long ttl, String donnee) {
+            this.nom = nom;
+            this.type = type;
+            this.ttl = ttl;
+            this.donnee = donnee;
+        }
+    }
+
+    private int identifiant;
+    private int flags;
+    private String question = "";
+    private int qtype;
+    private int qclass;
+    private final List<Enregistrement> reponses = new ArrayList<>();
+    private final List<Enregistrement> autorites = new ArrayList<>();
+    private final List<Enregistrement> additionnels = new ArrayList<>();
+
+    private DNSMessage() {
+    }
+
+    public int getIdentifiant() {
+        return identifiant;
+    }
+
+    public boolean estReponse() {
+        return (flags & 0x8000) != 0;
+    }
+
+    public boolean estTronque() {
+        return (flags & 0x0200) != 0;
+    }
+
+    public int getRcode() {
+        return flags & 0x000F;
+    }
+
+    public String getQuestion() {
+        return question;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public int getQclass() {
+        return qclass;
+    }
+
+    public List<Enregistrement> getReponses() {
+        return reponses;
+    }
+
+    public List<Enregistrement> getAutorites() {
+        return autorites;
+    }
+
+    public List<Enregistrement> getAdditionnels() {
+        return additionnels;
+    }
+
+    /**
+     * Cree un paquet de requete avec une seule question
+     * @param identifiant : identifiant de la requete (16 bits)
+     * @param nom : nom demande
+     * @param type : type demande (TYPE_*)
+     * @param recursion : active le bit RD
+     * @return le paquet a envoyer
+     */
+    public static byte[] creerRequete(int identifiant, String nom, int type, boolean recursion) {
+        ByteArrayOutputStream paquet = new ByteArrayOutputStream(64);
+        paquet.write(identifiant >> 8);
+        paquet.write(identifiant);
+        paquet.write(recursion ? 0x01 : 0x00); //QR=0, opcode=0, RD
+        paquet.write(0x00);
+        paquet.write(0x00); //QDcount = 1
+        paquet.write(0x01);
+        for (int i = 0; i < 6; i++) { //ANcount, NScount, ARcount
+            paquet.write(0x00);
+        }
+        for (String label : nom.split("\\.")) {
+            if (label.isEmpty()) {
+                continue;
+            }
+            paquet.write(label.length());
+            for (int i = 0; i < label.length(); i++) {
+                paquet.write(label.charAt(i));
+            }
+        }
+        paquet.write(0x00);
+        paquet.write(type >> 8);
+        paquet.write(type);
+        paquet.write(CLASS_IN >> 8);
+        paquet.write(CLASS_IN);
+        return paquet.toByteArray();
+    }
+
+    /**
+     * Analyse un message recu
+     * @param data : contenu du datagramme
+     * @param longueur : nombre d'octets valides dans data
+     * @return le message decode
+     * @throws IOException si le message est tronque ou mal forme
+     */
+    public static DNSMessage lire(byte[] data, int longueur) throws IOException {
+        if (longueur < 12) {
+            throw new IOException("Message DNS trop court (" + longueur + ")");
+        }
+        DNSMessage message = new DNSMessage();
+        message.identifiant = lire16(data, 0);
+        message.flags = lire16(data, 2);
+        int qdcount = lire16(data, 4);
+        int ancount = lire16(data, 6);
+        int nscount = lire16(data, 8);
+        int arcount = lire16(data, 10);
+
+        int[] position = {12};
+        for (int i = 0; i < qdcount; i++) {
+            String nom = lireNom(data, position, longueur);
+            verifier(position[0] + 4, longueur);
+            if (i == 0) {
+                message.question = nom;
+                message.qtype = lire16(data, position[0]);
+                message.qclass = lire16(data, position[0] + 2);
+            }
+            position[0] += 4;
+        }
+        lireSection(data, position, longueur, ancount, message.reponses);
+        lireSection(data, position, longueur, nscount, message.autorites);
+        lireSection(data, position, longueur, arcount, message.additionnels);
+        return message;
+    }
+
+    /**
+     * Lit seulement l'en-tete et la question d'un paquet, sans les sections
+     * de reponse (ex pour une requete client)
+     */
+    public static DNSMessage lireQuestion(byte[] data, int longueur) throws IOException {
+        if (longueur < 12) {
+            throw new IOException("Message DNS trop court (" + longueur + ")");
+        }
+        DNSMessage message = new DNSMessage();
+        message.identifiant = lire16(data, 0);
+        message.flags = lire16(data, 2);
+        if (lire16(data, 4) > 0) {
+            int[] position = {12};
+            message.question = lireNom(data, position, longueur);
+            verifier(position[0] + 4, longueur);
+            message.qtype = lire16(data, position[0]);
+            message.qclass = lire16(data, position[0] + 2);
+        }
+        return message;
+    }
+
+    private static void lireSection(byte[] data, int[] position, int longueur, int nombre,
+            List<Enregistrement> section) throws IOException {
+        for (int i = 0; i < nombre; i++) {
+            String nom = lireNom(data, position, longueur);
+            int p = position[0];
+            verifier(p + 10, longueur);
+            int type = lire16(data, p);
+            long ttl = ((long) lire16(data, p + 4) << 16) | lire16(data, p + 6);
+            int rdlength = lire16(data, p + 8);
+            p += 10;
+            verifier(p + rdlength, longueur);
+
+            String donnee = null;
+            if (type == TYPE_A && rdlength == 4) {
+                donnee = (data[p] & 0xff) + "." + (data[p + 1] & 0xff) + "."
+                        + (data[p + 2] & 0xff) + "." + (data[p + 3] & 0xff);
+            } else if (type == TYPE_NS || type == TYPE_CNAME) {
+                int[] rdata = {p};
+                donnee = lireNom(data, rdata, longueur);
+            }
+            section.add(new Enregistrement(nom, type, ttl & 0x7FFFFFFFL, donnee));
+            position[0] = p + rdlength;
+        }
+    }
+
+    /**
+     * Lit un nom a la position donnee, en suivant les pointeurs de compression
+     * @param position : position de lecture, avancee apres le nom
+     */
+    static String lireNom(byte[] data, int[] position, int longueur) throws IOException {
+        StringBuilder nom = new StringBuilder();
+        int p = position[0];
+        int fin = -1; //position apres le nom, a la sortie du premier pointeur
+        int sauts = 0;
+        while (true) {
+            verifier(p + 1, longueur);
+            int len = data[p] & 0xff;
+            if (len == 0) {
+                p++;
+                break;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                verifier(p + 2, longueur);
+                if (fin < 0) {
+                    fin = p + 2;
+                }
+                if (++sauts > 64) {
+                    throw new IOException("Boucle de compression dans un nom");
+                }
+                p = ((len & 0x3F) << 8) | (data[p + 1] & 0xff);
+                continue;
+            }
+            verifier(p + 1 + len, longueur);
+            if (nom.length() > 0) {
+                nom.append('.');
+            }
+            for (int i = 1; i <= len; i++) {
+                nom.append((char) (data[p + i] & 0xff));
+            }
+            p += len + 1;
+        }
+        position[0] = (fin < 0) ? p : fin;
+        return nom.toString();
+    }
+
+    static int lire16(byte[] data, int position) {
+        return ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+    }
+
+    private static void verifier(int position, int longueur) throws IOException {
+        if (position > longueur) {
+            throw new IOException("Message DNS tronque");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache des delegations apprises pendant la resolution iterative :
+ * pour chaque zone, les adresses (glue) de ses serveurs de noms.
+ * La zone racine ("") contient les serveurs racines et n'expire jamais,
+ * il y a donc toujours une delegation pour commencer une resolution.
+ */
+public class DelegationCache {
+
+    /**
+     * Serveurs de noms d'une zone
+     */
+    public static class Delegation {
+
+        private final String zone;
+        private final List<InetSocketAddress> serveurs;
+        private final long expiration;
+
+        Delegation(String zone, List<InetSocketAddress> serveurs, long expiration) {
+            this.zone = zone;
+            this.serveurs = serveurs;
+            this.expiration = expiration;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<InetSocketAddress> getServeurs() {
+            return serveurs;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Delegation> zones = new ConcurrentHashMap<>();
+    private final int maxZones;
+
+    /**
+     * Constructeur
+     * @param racines : serveurs de la zone racine (root hints)
+     * @param maxZones : nombre maximal de zones gardees en cache
+     */
+    public DelegationCache(List<InetSocketAddress> racines, int maxZones) {
+        this.maxZones = maxZones;
+        zones.put("", new Delegation("", new ArrayList<>(racines), Long.MAX_VALUE));
+    }
+
+    /**
+     * @param nom : nom a resoudre
+     * @return la delegation valide la plus profonde qui contient le nom
+     */
+    public Delegation trouver(String nom) {
+        String zone = AnswerRecorder.normaliser(nom);
+        long maintenant = System.currentTimeMillis();
+        while (!zone.isEmpty()) {
+            Delegation delegation = zones.get(zone);
+            if (delegation != null) {
+                if (delegation.expiration > maintenant) {
+                    return delegation;
+                }
+                zones.remove(zone, delegation);
+            }
+            int point = zone.indexOf('.');
+            zone = (point < 0) ? "" : zone.substring(point + 1);
+        }
+        return zones.get("");
+    }
+
+    /**
+     * @param zone : zone deleguee (ex example.com)
+     * @param serveurs : adresses des serveurs de noms de la zone
+     * @param ttl : duree de validite, en secondes
+     */
+    public void enregistrer(String zone, List<InetSocketAddress> serveurs, long ttl) {
+        String cle = AnswerRecorder.normaliser(zone);
+        if (cle.isEmpty() || serveurs.isEmpty()) {
+            return;
+        }
+        if (zones.size() >= maxZones) {
+            purger();
+        }
+        zones.put(cle, new Delegation(cle, new ArrayList<>(serveurs), System.currentTimeMillis() + ttl * 1000));
+    }
+
+    /**
+     * Retire une zone et toutes ses sous-zones (la racine n'est jamais retiree)
+     * @param zone : ex example.com, "" pour tout retirer
+     * @return nombre de delegations retirees
+     */
+    public int retirerSousArbre(String zone) {
+        String cle = AnswerRecorder.normaliser(zone);
+        int retirees = 0;
+        Iterator<String> it = zones.keySet().iterator();
+        while (it.hasNext()) {
+            String nom = it.next();
+            if (!nom.isEmpty() && (cle.isEmpty() || nom.equals(cle) || nom.endsWith("." + cle))) {
+                it.remove();
+                retirees++;
+            }
+        }
+        return retirees;
+    }
+
+    /**
+     * Parcourt les delegations valides
+     * @return copie des delegations, hors racine
+     */
+    public List<Delegation> lister() {
+        List<Delegation> liste = new ArrayList<>();
+        long maintenant = System.currentTimeMillis();
+        for (Delegation delegation : zones.values()) {
+            if (!delegation.zone.isEmpty() && delegation.expiration > maintenant) {
+                liste.add(delegation);
+            }
+        }
+        return liste;
+    }
+
+    /**
+     * Retire les delegations expirees, puis des delegations quelconques
+     * si le cache est encore plein
+     */
+    private void purger() {
+        long maintenant = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Delegation>> it = zones.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Delegation> entree = it.next();
+            if (!entree.getKey().isEmpty() && entree.getValue().expiration <= maintenant) {
+                it.remove();
+            }
+        }
+        it = zones.entrySet().iterator();
+        while (it.hasNext() && zones.size() > maxZones / 2) {
+            if (!it.next().getKey().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public int getTaille() {
+        return zones.size() - 1;
+    }
+}
@@ -0,0 +1,158 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Liste de domaines bloques, prevue pour des millions d'entrees.
+ *
+ * Les domaines ne sont pas gardes sous forme de String : seule une empreinte
+ * 64 bits de chaque nom est conservee, triee, dans un tampon hors du tas
+ * (ByteBuffer direct) que le GC n'a jamais a parcourir. Un filtre de Bloom
+ * devant ce tableau rejette presque toutes les requetes non bloquees sans
+ * recherche dichotomique.
+ *
+ * Un domaine de la liste bloque aussi tous ses sous-domaines
+ * (example.com bloque ads.example.com).
+ */
+public class DomainBlocklist {
+
+    private final BloomFilter filtre;
+    private final LongBuffer empreintes; //empreintes triees, hors du tas
+    private final int taille;
+
+    private DomainBlocklist(long[] triees, int taille) {
+        this.taille = taille;
+        this.filtre = new BloomFilter(taille, 10);
+        this.empreintes = ByteBuffer.allocateDirect(Math.max(8, taille * 8))
+                .order(ByteOrder.nativeOrder()).asLongBuffer();
+        for (int i = 0; i < taille; i++) {
+            filtre.ajouter(triees[i]);
+            empreintes.put(i, triees[i]);
+        }
+    }
+
+    /**
+     * Charge une ou plusieurs listes. Formats acceptes par ligne :
+     * "domaine" ou "ip domaine" (fichier hosts), # pour les commentaires
+     * @param fichiers : chemins des listes
+     * @return la liste prete a etre interrogee
+     * @throws IOException
+     */
+    public static DomainBlocklist charger(List<String> fichiers) throws IOException {
+        long[] lues = new long[1 << 16];
+        int nb = 0;
+
+        for (String fichier : fichiers) {
+            BufferedReader reader = new BufferedReader(new FileReader(fichier));
+            try {
+                String ligne;
+                while ((ligne = reader.readLine()) != null) {
+                    int commentaire = ligne.indexOf('#');
+                    if (commentaire >= 0) {
+                        ligne = ligne.substring(0, commentaire);
+                    }
+                    String[] champs = ligne.trim().split("\\s+");
+                    String domaine = champs[champs.length - 1];
+                    if (domaine.isEmpty() || domaine.equals("localhost")) {
+                        continue;
+                    }
+                    if (nb == lues.length) {
+                        lues = Arrays.copyOf(lues, nb * 2);
+                    }
+                    lues[nb++] = empreinte(domaine, 0);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // *Tri et retrait des doublons
+        Arrays.sort(lues, 0, nb);
+        int uniques = 0;
+        for (int i = 0; i < nb; i++) {
+            if (uniques == 0 || lues[uniques - 1] != lues[i]) {
+                lues[uniques++] = lues[i];
+            }
+        }
+
+        DomainBlocklist liste = new DomainBlocklist(lues, uniques);
+        System.out.println("Liste de blocage : " + uniques + " domaine(s) charge(s) ("
+                + (liste.filtre.getTaille() + uniques * 8L) / 1024 + " Ko)");
+        return liste;
+    }
+
+    /**
+     * Verifie le domaine et chacun de ses domaines parents, sans allocation
+     * @param hostname : nom demande (ex ads.example.com)
+     * @return true si le nom ou un de ses parents est dans la liste
+     */
+    public boolean estBloque(String hostname) {
+        int debut = 0;
+        while (debut < hostname.length()) {
+            long h = empreinte(hostname, debut);
+            if (filtre.contientPeutEtre(h) && contient(h)) {
+                return true;
+            }
+            int point = hostname.indexOf('.', debut);
+            if (point < 0) {
+                break;
+            }
+            debut = point + 1;
+        }
+        return false;
+    }
+
+    public int getTaille() {
+        return taille;
+    }
+
+    private boolean contient(long h) {
+        int bas = 0;
+        int haut = taille - 1;
+        while (bas <= haut) {
+            int milieu = (bas + haut) >>> 1;
+            long valeur = empreintes.get(milieu);
+            if (valeur < h) {
+                bas = milieu + 1;
+            } else if (valeur > h) {
+                haut = milieu - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empreinte FNV-1a 64 bits du nom a partir de debut, insensible a la casse
+     * et au point final, suivie d'un melange pour bien repartir les bits
+     */
+    static long empreinte(String nom, int debut) {
+        int fin = nom.length();
+        while (fin > debut && nom.charAt(fin - 1) == '.') {
+            fin--;
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = debut; i < fin; i++) {
+            char c = nom.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h ^= c;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
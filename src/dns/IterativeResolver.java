@@ -0,0 +1,329 @@
+package dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolution iterative : au lieu de confier la requete a un serveur de
+ * redirection, on part des serveurs racines et on suit les referrals
+ * (enregistrements NS + glue) jusqu'au serveur qui fait autorite.
+ *
+ * Les delegations apprises sont gardees dans un DelegationCache, ce qui
+ * permet aux resolutions suivantes de commencer directement au niveau
+ * le plus bas connu. Plusieurs resolutions s'executent en parallele sur
+ * un groupe de threads, et les requetes simultanees pour un meme nom
+ * partagent la meme resolution.
+ *
+ * Les serveurs interroges peuvent ecouter sur un autre port que 53
+ * (setPortServeurs), ce qui permet de tester hors ligne avec des serveurs
+ * d'autorite factices sur des adresses de loopback (127.0.0.x) : voir
+ * IterativeResolverCheck.
+ *
+ * Seuls les enregistrements A sont resolus : en mode iteratif, le receveur
+ * repond NOTIMP aux autres types au lieu de les rediriger.
+ */
+public class IterativeResolver {
+
+    /** Serveurs racines IANA (IPv4) */
+    public static final String RACINES_IANA = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,"
+            + "192.203.230.10,192.5.5.241,192.112.36.4,198.97.190.53,192.36.148.17,"
+            + "192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33";
+
+    private static final int MAX_REFERRALS = 16; //niveaux suivis pour un meme nom
+    private static final int MAX_CNAMES = 8;
+    private static final int MAX_PROFONDEUR = 4; //resolutions imbriquees de serveurs de noms sans glue
+    private static final long TTL_NEGATIF = 60;
+    private static final long TTL_NEGATIF_MAX = 3600;
+
+    /**
+     * Resultat d'une resolution
+     */
+    public static class Resultat {
+
+        public final int rcode;
+        public final List<String> adresses;
+        public final long ttl;
+
+        Resultat(int rcode, List<String> adresses, long ttl) {
+            this.rcode = rcode;
+            this.adresses = adresses;
+            this.ttl = ttl;
+        }
+    }
+
+    private static final Resultat ECHEC = new Resultat(UDPAnswerPacketCreator.RCODE_SERVFAIL,
+            Collections.<String>emptyList(), 0);
+
+    private final DelegationCache delegations;
+    private final ExecutorService executeur;
+    private final ConcurrentHashMap<String, CompletableFuture<Resultat>> enCours = new ConcurrentHashMap<>();
+    private final SecureRandom aleatoire = new SecureRandom();
+    private int portServeurs = 53; //port des serveurs appris par referral
+    private int delai = 2000; //attente d'une reponse (ms)
+
+    /**
+     * Constructeur
+     * @param racines : serveurs racines (root hints)
+     * @param nbThreads : nombre de resolutions simultanees
+     */
+    public IterativeResolver(List<InetSocketAddress> racines, int nbThreads) {
+        this.delegations = new DelegationCache(racines, 10000);
+        this.executeur = Executors.newFixedThreadPool(nbThreads, (r) -> {
+            Thread t = new Thread(r, "IterativeResolver");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setPortServeurs(int port) {
+        this.portServeurs = port;
+    }
+
+    public void setDelai(int delai) {
+        this.delai = delai;
+    }
+
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+
+    /**
+     * @param liste : serveurs au format "ip[:port]", separes par des virgules
+     * @param portParDefaut : port si absent
+     * @return les adresses des serveurs
+     */
+    public static List<InetSocketAddress> lireServeurs(String liste, int portParDefaut) {
+        List<InetSocketAddress> serveurs = new ArrayList<>();
+        for (String serveur : liste.split(",")) {
+            serveur = serveur.trim();
+            if (serveur.isEmpty()) {
+                continue;
+            }
+            int deuxPoints = serveur.lastIndexOf(':');
+            if (deuxPoints > 0 && serveur.indexOf(':') == deuxPoints) {
+                serveurs.add(new InetSocketAddress(serveur.substring(0, deuxPoints),
+                        Integer.parseInt(serveur.substring(deuxPoints + 1))));
+            } else {
+                serveurs.add(new InetSocketAddress(serveur, portParDefaut));
+            }
+        }
+        return serveurs;
+    }
+
+    /**
+     * Lance la resolution sur le groupe de threads
+     * @param hostname : nom a resoudre
+     * @return le resultat a venir, partage avec les autres requetes du meme nom
+     */
+    public CompletableFuture<Resultat> resoudreAsync(final String hostname) {
+        final String cle = AnswerRecorder.normaliser(hostname);
+        final CompletableFuture<Resultat> futur = new CompletableFuture<>();
+        CompletableFuture<Resultat> existant = enCours.putIfAbsent(cle, futur);
+        if (existant != null) {
+            return existant;
+        }
+        executeur.execute(() -> {
+            Resultat resultat;
+            try {
+                resultat = resoudre(cle);
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+                resultat = ECHEC;
+            } finally {
+                enCours.remove(cle, futur);
+            }
+            futur.complete(resultat);
+        });
+        return futur;
+    }
+
+    /**
+     * Resolution bloquante
+     * @param hostname : nom a resoudre
+     * @return adresses IPv4 du nom, ou le code d'erreur
+     */
+    public Resultat resoudre(String hostname) {
+        return resoudre(AnswerRecorder.normaliser(hostname), 0);
+    }
+
+    private Resultat resoudre(String hostname, int profondeur) {
+        String cible = hostname;
+
+        for (int cnames = 0; cnames <= MAX_CNAMES; cnames++) {
+            DelegationCache.Delegation delegation = delegations.trouver(cible);
+            String zone = delegation.getZone();
+            List<InetSocketAddress> serveurs = delegation.getServeurs();
+            String alias = null;
+
+            for (int etape = 0; etape < MAX_REFERRALS && alias == null; etape++) {
+                DNSMessage reponse = interroger(serveurs, cible);
+                if (reponse == null) {
+                    return ECHEC;
+                }
+                if (reponse.getRcode() == UDPAnswerPacketCreator.RCODE_NXDOMAIN) {
+                    return new Resultat(UDPAnswerPacketCreator.RCODE_NXDOMAIN,
+                            Collections.<String>emptyList(), ttlNegatif(reponse));
+                }
+                if (reponse.getRcode() != DNSMessage.RCODE_OK) {
+                    return ECHEC;
+                }
+
+                // *Section reponse : adresses du nom, eventuellement au bout d'une chaine de CNAME
+                if (!reponse.getReponses().isEmpty()) {
+                    Map<String, String> chaine = new HashMap<>();
+                    for (DNSMessage.Enregistrement rr : reponse.getReponses()) {
+                        if (rr.type == DNSMessage.TYPE_CNAME) {
+                            chaine.put(AnswerRecorder.normaliser(rr.nom), AnswerRecorder.normaliser(rr.donnee));
+                        }
+                    }
+                    String nom = cible;
+                    for (int i = 0; i < MAX_CNAMES && chaine.containsKey(nom); i++) {
+                        nom = chaine.get(nom);
+                    }
+                    List<String> adresses = new ArrayList<>();
+                    long ttl = Long.MAX_VALUE;
+                    for (DNSMessage.Enregistrement rr : reponse.getReponses()) {
+                        if (rr.type == DNSMessage.TYPE_A && AnswerRecorder.normaliser(rr.nom).equals(nom)) {
+                            adresses.add(rr.donnee);
+                        }
+                        ttl = Math.min(ttl, rr.ttl);
+                    }
+                    if (!adresses.isEmpty()) {
+                        return new Resultat(DNSMessage.RCODE_OK, adresses, ttl);
+                    }
+                    if (!nom.equals(cible)) {
+                        alias = nom; //CNAME sans adresse : on recommence avec la cible
+                        continue;
+                    }
+                }
+
+                // *Referral : serveurs de noms d'une zone plus proche du nom cherche
+                String nouvelleZone = null;
+                List<String> nomsServeurs = new ArrayList<>();
+                long ttl = Long.MAX_VALUE;
+                for (DNSMessage.Enregistrement rr : reponse.getAutorites()) {
+                    if (rr.type != DNSMessage.TYPE_NS) {
+                        continue;
+                    }
+                    String nomZone = AnswerRecorder.normaliser(rr.nom);
+                    if (estSousZone(cible, nomZone) && nomZone.length() > zone.length()
+                            && (nouvelleZone == null || nouvelleZone.equals(nomZone))) {
+                        nouvelleZone = nomZone;
+                        nomsServeurs.add(AnswerRecorder.normaliser(rr.donnee));
+                        ttl = Math.min(ttl, rr.ttl);
+                    }
+                }
+                if (nouvelleZone == null) {
+                    // *Pas de referral ni d'adresse : le nom existe sans enregistrement A
+                    return new Resultat(DNSMessage.RCODE_OK, Collections.<String>emptyList(), ttlNegatif(reponse));
+                }
+
+                List<InetSocketAddress> adresses = new ArrayList<>();
+                for (DNSMessage.Enregistrement rr : reponse.getAdditionnels()) {
+                    if (rr.type == DNSMessage.TYPE_A && nomsServeurs.contains(AnswerRecorder.normaliser(rr.nom))) {
+                        adresses.add(new InetSocketAddress(rr.donnee, portServeurs));
+                    }
+                }
+                // *Pas de glue : on resout le nom des serveurs de noms hors de la zone
+                for (int i = 0; adresses.isEmpty() && i < nomsServeurs.size() && profondeur < MAX_PROFONDEUR; i++) {
+                    if (estSousZone(nomsServeurs.get(i), nouvelleZone)) {
+                        continue;
+                    }
+                    Resultat ns = resoudre(nomsServeurs.get(i), profondeur + 1);
+                    for (String adresse : ns.adresses) {
+                        adresses.add(new InetSocketAddress(adresse, portServeurs));
+                    }
+                }
+                if (adresses.isEmpty()) {
+                    return ECHEC;
+                }
+
+                delegations.enregistrer(nouvelleZone, adresses, ttl);
+                zone = nouvelleZone;
+                serveurs = adresses;
+            }
+
+            if (alias == null) {
+                return ECHEC; //trop de referrals
+            }
+            cible = alias;
+        }
+        return ECHEC;
+    }
+
+    /**
+     * Envoie la question aux serveurs, un apres l'autre, jusqu'a obtenir une reponse valide
+     * @return la reponse, ou null si aucun serveur n'a repondu
+     */
+    private DNSMessage interroger(List<InetSocketAddress> serveurs, String hostname) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(delai);
+            byte[] buff = new byte[UDPReceiver.BUF_SIZE];
+
+            for (InetSocketAddress serveur : serveurs) {
+                int identifiant = aleatoire.nextInt(0x10000);
+                byte[] requete = DNSMessage.creerRequete(identifiant, hostname, DNSMessage.TYPE_A, false);
+                socket.send(new DatagramPacket(requete, requete.length, serveur));
+
+                long limite = System.currentTimeMillis() + delai;
+                try {
+                    while (System.currentTimeMillis() < limite) {
+                        DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+                        socket.receive(paquet);
+                        // *On ignore tout ce qui ne correspond pas exactement a la question envoyee
+                        if (!paquet.getSocketAddress().equals(serveur)) {
+                            continue;
+                        }
+                        DNSMessage reponse;
+                        try {
+                            reponse = DNSMessage.lire(paquet.getData(), paquet.getLength());
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        if (reponse.estReponse() && reponse.getIdentifiant() == identifiant
+                                && reponse.getQuestion().equalsIgnoreCase(hostname)) {
+                            return reponse;
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    System.out.println("Pas de reponse de " + serveur + " pour " + hostname);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        return null;
+    }
+
+    /**
+     * TTL d'une reponse negative : celui du SOA de la section autorite
+     */
+    private static long ttlNegatif(DNSMessage reponse) {
+        for (DNSMessage.Enregistrement rr : reponse.getAutorites()) {
+            if (rr.type == DNSMessage.TYPE_SOA) {
+                return Math.min(rr.ttl, TTL_NEGATIF_MAX);
+            }
+        }
+        return TTL_NEGATIF;
+    }
+
+    /**
+     * @return true si nom est egal a zone ou en est un sous-domaine
+     */
+    private static boolean estSousZone(String nom, String zone) {
+        return zone.isEmpty() || nom.equals(zone) || nom.endsWith("." + zone);
+    }
+}
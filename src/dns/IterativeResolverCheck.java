@@ -0,0 +1,319 @@
+package dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Verification hors ligne de IterativeResolver, avec des serveurs d'autorite
+ * factices sur des adresses de loopback :
+ *
+ *   java -cp GTI610_LAB04_Server_DNS.jar dns.IterativeResolverCheck [port]
+ *
+ *   127.0.0.2  racine : referrals vers com et net (avec glue)
+ *   127.0.0.3  com, net : example.com et my-site.com (avec glue), sansglue.com
+ *              (sans glue, serveur ns.hebergeur.net), hebergeur.net (avec glue)
+ *   127.0.0.4  example.com : www (A), alias (CNAME + A dans la meme reponse),
+ *              externe (CNAME seul vers www.sansglue.com) ; my-site.com : www (A)
+ *   127.0.0.5  hebergeur.net et sansglue.com
+ *
+ * Chaque cas part d'un resolveur neuf (cache de delegations vide). Les derniers
+ * cas passent par un UDPReceiver en mode iteratif, sur le port suivant : nom
+ * de la question, TTL de la reponse (resolue puis en cache) et refus des types
+ * autres que A. Le code de sortie est 0 si tous les cas passent, 1 sinon. Les
+ * adresses 127.0.0.x autres que 127.0.0.1 doivent etre utilisables (Linux ;
+ * ailleurs, les ajouter a l'interface de loopback). Port par defaut : 5353.
+ */
+public class IterativeResolverCheck {
+
+    private static final long TTL = 300;
+
+    /**
+     * Enregistrement servi par un serveur factice. Un NS s'applique a tous les
+     * noms de la zone (referral), un A ou un CNAME au nom exact seulement.
+     */
+    private static final class Regle {
+
+        final String nom;
+        final int type;
+        final String donnee;
+        final String glue; //adresse du serveur de noms (NS seulement, null = sans glue)
+
+        Regle(String nom, int type, String donnee, String glue) {
+            this.nom = nom;
+            this.type = type;
+            this.donnee = donnee;
+            this.glue = glue;
+        }
+
+        boolean concerne(String question) {
+            return (type == DNSMessage.TYPE_NS)
+                    ? question.equals(nom) || question.endsWith("." + nom)
+                    : question.equals(nom);
+        }
+    }
+
+    /**
+     * Serveur d'autorite factice : repond a chaque question avec la premiere
+     * regle qui la concerne (suivie de la cible d'un CNAME si elle est connue),
+     * NXDOMAIN sinon
+     */
+    private static final class ServeurFactice extends Thread {
+
+        private final DatagramSocket socket;
+        private final List<Regle> regles = new ArrayList<>();
+
+        ServeurFactice(String adresse, int port) throws IOException {
+            super("ServeurFactice-" + adresse);
+            this.socket = new DatagramSocket(new InetSocketAddress(adresse, port));
+            setDaemon(true);
+        }
+
+        ServeurFactice a(String nom, String adresse) {
+            regles.add(new Regle(nom, DNSMessage.TYPE_A, adresse, null));
+            return this;
+        }
+
+        ServeurFactice cname(String nom, String cible) {
+            regles.add(new Regle(nom, DNSMessage.TYPE_CNAME, cible, null));
+            return this;
+        }
+
+        ServeurFactice ns(String zone, String serveur, String glue) {
+            regles.add(new Regle(zone, DNSMessage.TYPE_NS, serveur, glue));
+            return this;
+        }
+
+        @Override
+        public void run() {
+            byte[] buff = new byte[UDPReceiver.BUF_SIZE];
+            while (true) {
+                DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+                try {
+                    socket.receive(paquet);
+                    DNSMessage requete = DNSMessage.lire(buff, paquet.getLength());
+                    byte[] reponse = repondre(requete);
+                    socket.send(new DatagramPacket(reponse, reponse.length, paquet.getSocketAddress()));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private Regle trouver(String nom, int type) {
+            for (Regle regle : regles) {
+                if ((type == 0 || regle.type == type) && regle.concerne(nom)) {
+                    return regle;
+                }
+            }
+            return null;
+        }
+
+        private byte[] repondre(DNSMessage requete) {
+            String question = AnswerRecorder.normaliser(requete.getQuestion());
+            ByteArrayOutputStream reponses = new ByteArrayOutputStream();
+            ByteArrayOutputStream autorites = new ByteArrayOutputStream();
+            ByteArrayOutputStream additionnels = new ByteArrayOutputStream();
+            int[] nombres = new int[3];
+            int flags = 0x8000; //QR
+
+            Regle regle = trouver(question, 0);
+            if (regle == null) {
+                flags |= 0x0400 | UDPAnswerPacketCreator.RCODE_NXDOMAIN; //AA
+            } else if (regle.type == DNSMessage.TYPE_NS) {
+                ecrire(autorites, regle.nom, DNSMessage.TYPE_NS, nom(regle.donnee));
+                nombres[1]++;
+                if (regle.glue != null) {
+                    ecrire(additionnels, regle.donnee, DNSMessage.TYPE_A, ipv4(regle.glue));
+                    nombres[2]++;
+                }
+            } else {
+                flags |= 0x0400;
+                ecrire(reponses, question, regle.type,
+                        (regle.type == DNSMessage.TYPE_A) ? ipv4(regle.donnee) : nom(regle.donnee));
+                nombres[0]++;
+                if (regle.type == DNSMessage.TYPE_CNAME) {
+                    Regle cible = trouver(regle.donnee, DNSMessage.TYPE_A);
+                    if (cible != null) {
+                        ecrire(reponses, cible.nom, DNSMessage.TYPE_A, ipv4(cible.donnee));
+                        nombres[0]++;
+                    }
+                }
+            }
+
+            ByteArrayOutputStream sortie = new ByteArrayOutputStream();
+            court(sortie, requete.getIdentifiant());
+            court(sortie, flags);
+            court(sortie, 1);
+            court(sortie, nombres[0]);
+            court(sortie, nombres[1]);
+            court(sortie, nombres[2]);
+            byte[] nomQuestion = nom(question);
+            sortie.write(nomQuestion, 0, nomQuestion.length);
+            court(sortie, DNSMessage.TYPE_A);
+            court(sortie, DNSMessage.CLASS_IN);
+            for (ByteArrayOutputStream section : Arrays.asList(reponses, autorites, additionnels)) {
+                byte[] octets = section.toByteArray();
+                sortie.write(octets, 0, octets.length);
+            }
+            return sortie.toByteArray();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 5353;
+
+        new ServeurFactice("127.0.0.2", port)
+                .ns("com", "a.gtld.test", "127.0.0.3")
+                .ns("net", "a.gtld.test", "127.0.0.3")
+                .start();
+        new ServeurFactice("127.0.0.3", port)
+                .ns("example.com", "ns.example.com", "127.0.0.4")
+                .ns("my-site.com", "ns.example.com", "127.0.0.4")
+                .ns("sansglue.com", "ns.hebergeur.net", null)
+                .ns("hebergeur.net", "ns.hebergeur.net", "127.0.0.5")
+                .start();
+        new ServeurFactice("127.0.0.4", port)
+                .a("www.example.com", "93.184.216.34")
+                .cname("alias.example.com", "www.example.com")
+                .cname("externe.example.com", "www.sansglue.com")
+                .a("www.my-site.com", "203.0.113.9")
+                .start();
+        new ServeurFactice("127.0.0.5", port)
+                .a("ns.hebergeur.net", "127.0.0.5")
+                .a("www.sansglue.com", "198.51.100.7")
+                .start();
+
+        int echecs = 0;
+        echecs += verifier(port, "referral avec glue", "www.example.com", "93.184.216.34");
+        echecs += verifier(port, "CNAME et A dans la meme reponse", "alias.example.com", "93.184.216.34");
+        echecs += verifier(port, "referral sans glue", "www.sansglue.com", "198.51.100.7");
+        echecs += verifier(port, "CNAME seul vers une autre zone", "externe.example.com", "198.51.100.7");
+        echecs += verifier(port, "nom inexistant", "absent.example.com", null);
+        echecs += verifier(port, "nom avec un tiret", "www.my-site.com", "203.0.113.9");
+
+        // *Meme chemin qu'une requete client : UDPReceiver sans serveur de redirection utilisable
+        UDPReceiver receveur = new UDPReceiver("127.0.0.1", port + 1);
+        receveur.setRedirectionSeulement(false);
+        receveur.setCache(new OffHeapRecordStore(64), 3600);
+        receveur.setResolver(nouveauResolver(port));
+        receveur.setDaemon(true);
+        receveur.start();
+        Thread.sleep(200);
+        echecs += verifierReceveur(port + 1, "UDPReceiver, nom avec un tiret", "www.my-site.com",
+                DNSMessage.TYPE_A, DNSMessage.RCODE_OK, "203.0.113.9");
+        echecs += verifierReceveur(port + 1, "UDPReceiver, reponse en cache", "www.my-site.com",
+                DNSMessage.TYPE_A, DNSMessage.RCODE_OK, "203.0.113.9");
+        echecs += verifierReceveur(port + 1, "UDPReceiver, type autre que A", "www.my-site.com",
+                16, UDPAnswerPacketCreator.RCODE_NOTIMP, null);
+        System.out.println((echecs == 0) ? "OK" : echecs + " echec(s)");
+        System.exit((echecs == 0) ? 0 : 1);
+    }
+
+    /**
+     * @param attendue : adresse attendue, null pour NXDOMAIN
+     * @return 0 si le resultat est celui attendu, 1 sinon
+     */
+    private static int verifier(int port, String cas, String nom, String attendue) {
+        IterativeResolver.Resultat resultat = nouveauResolver(port).resoudre(nom);
+        boolean ok = (attendue == null)
+                ? resultat.rcode == UDPAnswerPacketCreator.RCODE_NXDOMAIN
+                : resultat.rcode == DNSMessage.RCODE_OK && resultat.adresses.equals(Arrays.asList(attendue));
+        System.out.println((ok ? "ok     " : "ECHEC  ") + cas + " : " + nom + " -> rcode " + resultat.rcode
+                + " " + resultat.adresses);
+        return ok ? 0 : 1;
+    }
+
+    /**
+     * Envoie une requete au receveur et verifie le code de retour, l'adresse
+     * et le TTL de la reponse (celui de la zone, TTL, et non TTL_DEFAUT)
+     * @param attendue : adresse attendue, null si aucune reponse n'est attendue
+     * @return 0 si la reponse est celle attendue, 1 sinon
+     */
+    private static int verifierReceveur(int port, String cas, String nom, int type, int rcode, String attendue) {
+        String obtenu;
+        boolean ok;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(3000);
+            byte[] requete = DNSMessage.creerRequete(0x2900, nom, type, true);
+            socket.send(new DatagramPacket(requete, requete.length, new InetSocketAddress("127.0.0.1", port)));
+            byte[] buff = new byte[UDPReceiver.BUF_SIZE];
+            DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+            socket.receive(paquet);
+            DNSMessage reponse = DNSMessage.lire(buff, paquet.getLength());
+            List<String> adresses = new ArrayList<>();
+            long ttl = -1;
+            for (DNSMessage.Enregistrement enregistrement : reponse.getReponses()) {
+                adresses.add(enregistrement.donnee);
+                ttl = enregistrement.ttl;
+            }
+            ok = reponse.getRcode() == rcode && ((attendue == null)
+                    ? adresses.isEmpty()
+                    : adresses.equals(Arrays.asList(attendue)) && ttl > 0 && ttl <= TTL);
+            obtenu = "rcode " + reponse.getRcode() + " " + adresses + ((ttl < 0) ? "" : " ttl " + ttl);
+        } catch (SocketTimeoutException e) {
+            ok = false;
+            obtenu = "pas de reponse";
+        } catch (IOException e) {
+            ok = false;
+            obtenu = e.toString();
+        }
+        System.out.println((ok ? "ok     " : "ECHEC  ") + cas + " : " + nom + " -> " + obtenu);
+        return ok ? 0 : 1;
+    }
+
+    private static IterativeResolver nouveauResolver(int port) {
+        IterativeResolver resolver = new IterativeResolver(IterativeResolver.lireServeurs("127.0.0.2", port), 1);
+        resolver.setPortServeurs(port);
+        resolver.setDelai(500);
+        return resolver;
+    }
+
+    private static void ecrire(ByteArrayOutputStream sortie, String nom, int type, byte[] rdata) {
+        byte[] octets = nom(nom);
+        sortie.write(octets, 0, octets.length);
+        court(sortie, type);
+        court(sortie, DNSMessage.CLASS_IN);
+        court(sortie, (int) (TTL >> 16));
+        court(sortie, (int) TTL);
+        court(sortie, rdata.length);
+        sortie.write(rdata, 0, rdata.length);
+    }
+
+    private static void court(ByteArrayOutputStream sortie, int valeur) {
+        sortie.write(valeur >> 8);
+        sortie.write(valeur);
+    }
+
+    /**
+     * @return le nom au format du protocole, sans compression
+     */
+    private static byte[] nom(String nom) {
+        ByteArrayOutputStream sortie = new ByteArrayOutputStream();
+        for (String etiquette : nom.split("\\.")) {
+            if (!etiquette.isEmpty()) {
+                sortie.write(etiquette.length());
+                for (int i = 0; i < etiquette.length(); i++) {
+                    sortie.write(etiquette.charAt(i));
+                }
+            }
+        }
+        sortie.write(0);
+        return sortie.toByteArray();
+    }
+
+    private static byte[] ipv4(String adresse) {
+        String[] octets = adresse.split("\\.");
+        byte[] resultat = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            resultat[i] = (byte) Integer.parseInt(octets[i]);
+        }
+        return resultat;
+    }
+}
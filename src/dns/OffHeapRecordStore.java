@@ -0,0 +1,539 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stockage des correspondances hostname -> adresses IPv4 hors du tas Java.
+ *
+ * Chaque entree occupe un emplacement de taille fixe dans des ByteBuffer
+ * directs d'au plus 1 Go (tranches) : empreinte du nom, expiration, position
+ * du nom et RDATA des enregistrements A au format du protocole (4 octets par
+ * adresse). Les noms (octets ASCII) sont dans une arene a part, par blocs de
+ * 16 a 256 octets selon leur longueur, reutilises apres eviction. L'index est
+ * une table a adressage ouvert (sondage lineaire) dans un IntBuffer direct,
+ * qui donne le numero d'entree a partir de l'empreinte.
+ *
+ * Les emplacements sont alloues a la creation, l'arene grandit au besoin.
+ * Quand toutes les entrees sont utilisees, une entree est evincee selon
+ * l'algorithme CLOCK (seconde chance) : les entrees lues recemment sont
+ * epargnees un tour, les entrees expirees depuis plus longtemps que la
+ * fenetre de donnees perimees (RFC 8767) partent en premier.
+ *
+ * Les methodes sont synchronisees : chaque operation est courte et ne fait
+ * aucune allocation sur le tas hormis la liste retournee par chercher.
+ */
+public class OffHeapRecordStore {
+
+    public static final int MAX_NAME = 255;
+    public static final int MAX_RECORDS = 16;
+    // *L'index (deux cases par entree) doit tenir dans un seul IntBuffer
+    public static final int MAX_CAPACITE = 1 << 27;
+
+    // *Disposition d'une entree
+    private static final int OFF_HASH = 0;      //long : empreinte du nom
+    private static final int OFF_EXPIRATION = 8; //long : expiration (ms)
+    private static final int OFF_NAME = 16;     //long : position du nom dans l'arene
+    private static final int OFF_NAME_LEN = 24; //short : longueur du nom
+    private static final int OFF_NB_RECORDS = 26; //byte : nombre d'adresses
+    private static final int OFF_REFERENCE = 27; //byte : bit de reference CLOCK
+    private static final int OFF_AMONT = 28;    //byte : 1 si les adresses viennent d'un serveur amont
+    private static final int OFF_RDATA = 32;
+    private static final int ENTRY_SIZE = (OFF_RDATA + MAX_RECORDS * 4 + 7) & ~7;
+
+    private static final int TRANCHE = 1 << 30; //taille maximale d'un ByteBuffer d'entrees
+    private static final int ENTREES_PAR_TRANCHE = TRANCHE / ENTRY_SIZE;
+    private static final int TRANCHE_ARENE = 1 << 24; //taille maximale d'une tranche de l'arene
+    private static final int NB_CLASSES = 5; //blocs de noms de 16, 32, 64, 128 et 256 octets
+
+    private static final int LOT = 256; //entrees lues par prise du verrou lors d'un parcours
+
+    /**
+     * Copie d'une entree, remise aux parcours
+     */
+    public static class Entree {
+
+        public final String nom;
+        public final List<String> adresses;
+        public final long expiration;
+
+        Entree(String nom, List<String> adresses, long expiration) {
+            this.nom = nom;
+            this.adresses = adresses;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * Traitement applique a chaque entree par parcourir
+     */
+    public interface Visiteur {
+
+        void visiter(Entree entree);
+    }
+
+    private final int capacite; //nombre maximal d'entrees
+    private final ByteBuffer[] entrees; //tranches d'entrees
+    private final List<ByteBuffer> arene = new ArrayList<>(); //tranches des noms
+    private final int trancheArene;
+    private int finArene; //premier octet libre de la derniere tranche de l'arene
+    private final long[] blocsLibres = new long[NB_CLASSES]; //par classe, liste chainee des blocs liberes (-1 = vide)
+    private final IntBuffer index; //numero d'entree + 1, 0 = case vide
+    private final int masque;
+    private final IntBuffer libres; //pile des entrees libres
+    private int nbLibres;
+    private int aiguille = 0; //position de l'aiguille CLOCK
+    private int evictions = 0;
+    private long fenetreStale = 0; //duree de conservation apres expiration (ms)
+
+    /**
+     * Constructeur
+     * @param capacite : nombre maximal de hostnames conserves, entre 1 et MAX_CAPACITE
+     * @throws IllegalArgumentException si la capacite est hors limites
+     */
+    public OffHeapRecordStore(int capacite) {
+        if (capacite < 1 || capacite > MAX_CAPACITE) {
+            throw new IllegalArgumentException("Capacite du cache entre 1 et " + MAX_CAPACITE + " entrees : " + capacite);
+        }
+        this.capacite = capacite;
+        this.entrees = new ByteBuffer[(capacite + ENTREES_PAR_TRANCHE - 1) / ENTREES_PAR_TRANCHE];
+        for (int t = 0; t < entrees.length; t++) {
+            int nb = Math.min(ENTREES_PAR_TRANCHE, capacite - t * ENTREES_PAR_TRANCHE);
+            entrees[t] = ByteBuffer.allocateDirect(nb * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+        }
+        // *Arene en petites tranches pour un petit cache, 32 octets par nom pour commencer
+        this.trancheArene = (int) Math.min(TRANCHE_ARENE, Math.max(4096, capacite * 32L));
+        this.finArene = trancheArene;
+        Arrays.fill(blocsLibres, -1);
+
+        // *Index deux fois plus grand que la capacite : taux de remplissage <= 50%
+        int tailleIndex = Integer.highestOneBit(Math.max(2, capacite) * 2 - 1) << 1;
+        this.index = ByteBuffer.allocateDirect(tailleIndex * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        this.masque = tailleIndex - 1;
+
+        this.libres = ByteBuffer.allocateDirect(capacite * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        for (int i = 0; i < capacite; i++) {
+            libres.put(i, capacite - 1 - i);
+        }
+        this.nbLibres = capacite;
+    }
+
+    /**
+     * @param hostname : nom cherche
+     * @return les adresses non expirees du nom, ou null si absent
+     */
+    public List<String> chercher(String hostname) {
+        return chercher(hostname, null);
+    }
+
+    /**
+     * @param hostname : nom cherche
+     * @param restant : si non null, recoit en [0] la duree de vie restante de l'entree,
+     *                  en secondes (au moins 1), a utiliser comme TTL de la reponse
+     * @return les adresses non expirees du nom, ou null si absent
+     */
+    public synchronized List<String> chercher(String hostname, long[] restant) {
+        int entree = trouver(hostname, DomainBlocklist.empreinte(hostname, 0));
+        if (entree < 0) {
+            return null;
+        }
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        long reste = tranche.getLong(base + OFF_EXPIRATION) - System.currentTimeMillis();
+        if (reste <= 0 || tranche.get(base + OFF_NB_RECORDS) == 0) {
+            return null;
+        }
+        tranche.put(base + OFF_REFERENCE, (byte) 1);
+        if (restant != null) {
+            restant[0] = (reste + 999) / 1000;
+        }
+        return lireAdresses(entree);
+    }
+
+    /**
+     * Recherche qui accepte une entree expiree depuis moins de la fenetre
+     * de donnees perimees, pour repondre quand le serveur amont ne repond pas
+     * @param hostname : nom cherche
+     * @return les adresses du nom, ou null si absent ou expire depuis trop longtemps
+     */
+    public synchronized List<String> chercherPerime(String hostname) {
+        int entree = trouver(hostname, DomainBlocklist.empreinte(hostname, 0));
+        if (entree < 0) {
+            return null;
+        }
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        if (tranche.getLong(base + OFF_EXPIRATION) + fenetreStale <= System.currentTimeMillis()
+                || tranche.get(base + OFF_NB_RECORDS) == 0) {
+            return null;
+        }
+        tranche.put(base + OFF_REFERENCE, (byte) 1);
+        return lireAdresses(entree);
+    }
+
+    /**
+     * @param secondes : duree pendant laquelle une entree expiree reste utilisable par chercherPerime
+     */
+    public synchronized void setFenetreStale(long secondes) {
+        this.fenetreStale = secondes * 1000;
+    }
+
+    /**
+     * Le nom est en cache, meme expire, avec une reponse d'un serveur amont :
+     * il faut redemander au serveur amont plutot que lire le fichier DNS, qui
+     * garde les reponses amont sans limite de duree
+     * @param hostname : nom cherche
+     * @return true si la derniere reponse enregistree pour le nom vient d'un serveur amont
+     */
+    public synchronized boolean estAmont(String hostname) {
+        int entree = trouver(hostname, DomainBlocklist.empreinte(hostname, 0));
+        return entree >= 0 && tranche(entree).get(base(entree) + OFF_AMONT) != 0;
+    }
+
+    /**
+     * Ajoute ou remplace les adresses d'un nom lues dans le fichier DNS
+     * @param hostname : nom (ex google.com)
+     * @param adresses : adresses IPv4, seules les MAX_RECORDS premieres sont gardees
+     * @param ttl : duree de validite, en secondes
+     */
+    public void enregistrer(String hostname, List<String> adresses, long ttl) {
+        enregistrer(hostname, adresses, ttl, false);
+    }
+
+    /**
+     * Ajoute ou remplace les adresses d'un nom
+     * @param hostname : nom (ex google.com)
+     * @param adresses : adresses IPv4, seules les MAX_RECORDS premieres sont gardees
+     * @param ttl : duree de validite, en secondes
+     * @param amont : true pour une reponse d'un serveur amont (voir estAmont)
+     */
+    public synchronized void enregistrer(String hostname, List<String> adresses, long ttl, boolean amont) {
+        String nom = AnswerRecorder.normaliser(hostname);
+        if (nom.isEmpty() || nom.length() > MAX_NAME || adresses.isEmpty()) {
+            return;
+        }
+        long h = DomainBlocklist.empreinte(nom, 0);
+        int entree = trouver(nom, h);
+        if (entree < 0) {
+            entree = allouer();
+            long position = allouerNom(nom.length());
+            ByteBuffer blocNom = arene.get((int) (position / trancheArene));
+            int debutNom = (int) (position % trancheArene);
+            for (int i = 0; i < nom.length(); i++) {
+                blocNom.put(debutNom + i, (byte) nom.charAt(i));
+            }
+            ByteBuffer tranche = tranche(entree);
+            int base = base(entree);
+            tranche.putLong(base + OFF_HASH, h);
+            tranche.putLong(base + OFF_NAME, position);
+            tranche.putShort(base + OFF_NAME_LEN, (short) nom.length());
+            int i = (int) h & masque;
+            while (index.get(i) != 0) {
+                i = (i + 1) & masque;
+            }
+            index.put(i, entree + 1);
+        }
+
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        int nb = 0;
+        for (String adresse : adresses) {
+            if (nb == MAX_RECORDS) {
+                break;
+            }
+            if (ecrireAdresse(tranche, base + OFF_RDATA + nb * 4, adresse)) {
+                nb++;
+            }
+        }
+        tranche.put(base + OFF_NB_RECORDS, (byte) nb);
+        tranche.put(base + OFF_REFERENCE, (byte) 0);
+        tranche.put(base + OFF_AMONT, (byte) (amont ? 1 : 0));
+        tranche.putLong(base + OFF_EXPIRATION, System.currentTimeMillis() + ttl * 1000);
+    }
+
+    /**
+     * Parcourt toutes les entrees par lots : le verrou est relache entre deux
+     * lots et le visiteur est appele hors du verrou, un long parcours ne
+     * bloque donc pas les requetes. Une entree modifiee pendant le parcours
+     * peut etre vue dans son ancien ou son nouvel etat.
+     * @param visiteur : traitement de chaque entree
+     */
+    public void parcourir(Visiteur visiteur) {
+        List<Entree> lot = new ArrayList<>(LOT);
+        for (int debut = 0; debut < capacite; debut += LOT) {
+            lot.clear();
+            synchronized (this) {
+                for (int entree = debut; entree < Math.min(capacite, debut + LOT); entree++) {
+                    ByteBuffer tranche = tranche(entree);
+                    int base = base(entree);
+                    if (tranche.getShort(base + OFF_NAME_LEN) > 0) {
+                        lot.add(new Entree(lireNom(entree), lireAdresses(entree), tranche.getLong(base + OFF_EXPIRATION)));
+                    }
+                }
+            }
+            for (Entree entree : lot) {
+                visiteur.visiter(entree);
+            }
+        }
+    }
+
+    /**
+     * @param hostname : nom a retirer
+     * @return true si le nom etait present
+     */
+    public synchronized boolean retirer(String hostname) {
+        int entree = trouver(hostname, DomainBlocklist.empreinte(hostname, 0));
+        if (entree < 0) {
+            return false;
+        }
+        liberer(entree);
+        return true;
+    }
+
+    /**
+     * Retire un nom et tous ses sous-domaines, par lots comme parcourir
+     * @param zone : ex example.com retire aussi www.example.com
+     * @return nombre d'entrees retirees
+     */
+    public int retirerSousArbre(String zone) {
+        String suffixe = "." + AnswerRecorder.normaliser(zone);
+        int retirees = 0;
+        for (int debut = 0; debut < capacite; debut += LOT) {
+            synchronized (this) {
+                for (int entree = debut; entree < Math.min(capacite, debut + LOT); entree++) {
+                    if (tranche(entree).getShort(base(entree) + OFF_NAME_LEN) > 0) {
+                        String nom = "." + lireNom(entree);
+                        if (nom.endsWith(suffixe) || suffixe.equals(".")) {
+                            liberer(entree);
+                            retirees++;
+                        }
+                    }
+                }
+            }
+        }
+        return retirees;
+    }
+
+    /**
+     * @return nombre d'entrees utilisees
+     */
+    public synchronized int getTaille() {
+        return capacite - nbLibres;
+    }
+
+    public int getCapacite() {
+        return capacite;
+    }
+
+    /**
+     * @return nombre d'entrees evincees faute de place
+     */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return memoire hors du tas occupee, en octets
+     */
+    public synchronized long getMemoire() {
+        long memoire = (long) arene.size() * trancheArene + index.capacity() * 4L + libres.capacity() * 4L;
+        for (ByteBuffer tranche : entrees) {
+            memoire += tranche.capacity();
+        }
+        return memoire;
+    }
+
+    private ByteBuffer tranche(int entree) {
+        return entrees[entree / ENTREES_PAR_TRANCHE];
+    }
+
+    /**
+     * @return position de l'entree dans sa tranche
+     */
+    private static int base(int entree) {
+        return (entree % ENTREES_PAR_TRANCHE) * ENTRY_SIZE;
+    }
+
+    private int trouver(String hostname, long h) {
+        int i = (int) h & masque;
+        int valeur;
+        while ((valeur = index.get(i)) != 0) {
+            int entree = valeur - 1;
+            if (tranche(entree).getLong(base(entree) + OFF_HASH) == h && memeNom(entree, hostname)) {
+                return entree;
+            }
+            i = (i + 1) & masque;
+        }
+        return -1;
+    }
+
+    /**
+     * Compare le nom stocke avec hostname, sans tenir compte de la casse ni du point final
+     */
+    private boolean memeNom(int entree, String hostname) {
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        int longueur = tranche.getShort(base + OFF_NAME_LEN);
+        int fin = hostname.length();
+        while (fin > 0 && hostname.charAt(fin - 1) == '.') {
+            fin--;
+        }
+        if (fin != longueur) {
+            return false;
+        }
+        long position = tranche.getLong(base + OFF_NAME);
+        ByteBuffer blocNom = arene.get((int) (position / trancheArene));
+        int debutNom = (int) (position % trancheArene);
+        for (int i = 0; i < longueur; i++) {
+            char c = hostname.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if ((byte) c != blocNom.get(debutNom + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void liberer(int entree) {
+        retirerIndex(entree);
+        libererNom(entree);
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        tranche.putShort(base + OFF_NAME_LEN, (short) 0);
+        tranche.put(base + OFF_NB_RECORDS, (byte) 0);
+        libres.put(nbLibres++, entree);
+    }
+
+    private String lireNom(int entree) {
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        int longueur = tranche.getShort(base + OFF_NAME_LEN);
+        long position = tranche.getLong(base + OFF_NAME);
+        ByteBuffer blocNom = arene.get((int) (position / trancheArene));
+        int debutNom = (int) (position % trancheArene);
+        char[] nom = new char[longueur];
+        for (int i = 0; i < longueur; i++) {
+            nom[i] = (char) (blocNom.get(debutNom + i) & 0xff);
+        }
+        return new String(nom);
+    }
+
+    /**
+     * @return classe du bloc d'un nom : 0 pour 16 octets, ... 4 pour 256 octets
+     */
+    private static int classe(int longueur) {
+        return (longueur <= 16) ? 0 : 32 - Integer.numberOfLeadingZeros(longueur - 1) - 4;
+    }
+
+    /**
+     * Reserve un bloc de l'arene pour un nom : un bloc libere de la meme
+     * classe, sinon la suite de la derniere tranche, sinon une nouvelle tranche
+     * @return position du bloc dans l'arene
+     */
+    private long allouerNom(int longueur) {
+        int classe = classe(longueur);
+        long position = blocsLibres[classe];
+        if (position >= 0) {
+            // *Le bloc libere contient la position du bloc libre suivant
+            blocsLibres[classe] = arene.get((int) (position / trancheArene)).getLong((int) (position % trancheArene));
+            return position;
+        }
+        int taille = 16 << classe;
+        if (finArene + taille > trancheArene) {
+            arene.add(ByteBuffer.allocateDirect(trancheArene).order(ByteOrder.nativeOrder()));
+            finArene = 0;
+        }
+        position = (long) (arene.size() - 1) * trancheArene + finArene;
+        finArene += taille;
+        return position;
+    }
+
+    private void libererNom(int entree) {
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        int classe = classe(tranche.getShort(base + OFF_NAME_LEN));
+        long position = tranche.getLong(base + OFF_NAME);
+        arene.get((int) (position / trancheArene)).putLong((int) (position % trancheArene), blocsLibres[classe]);
+        blocsLibres[classe] = position;
+    }
+
+    private int allouer() {
+        if (nbLibres > 0) {
+            return libres.get(--nbLibres);
+        }
+        // *Plus de place : algorithme CLOCK
+        long maintenant = System.currentTimeMillis();
+        while (true) {
+            int entree = aiguille;
+            aiguille = (aiguille + 1) % capacite;
+            ByteBuffer tranche = tranche(entree);
+            int base = base(entree);
+            if (tranche.get(base + OFF_REFERENCE) != 0
+                    && tranche.getLong(base + OFF_EXPIRATION) + fenetreStale > maintenant) {
+                tranche.put(base + OFF_REFERENCE, (byte) 0); //seconde chance
+                continue;
+            }
+            retirerIndex(entree);
+            libererNom(entree);
+            evictions++;
+            return entree;
+        }
+    }
+
+    /**
+     * Retire une entree de l'index par decalage arriere, pour ne pas
+     * laisser de trou dans les sequences de sondage
+     */
+    private void retirerIndex(int entree) {
+        int i = (int) tranche(entree).getLong(base(entree) + OFF_HASH) & masque;
+        while (index.get(i) != entree + 1) {
+            i = (i + 1) & masque;
+        }
+        int trou = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & masque;
+            int valeur = index.get(j);
+            if (valeur == 0) {
+                break;
+            }
+            int ideal = (int) tranche(valeur - 1).getLong(base(valeur - 1) + OFF_HASH) & masque;
+            // *L'element en j peut combler le trou s'il n'est pas entre le trou et j (circulairement)
+            if (((j - ideal) & masque) >= ((j - trou) & masque)) {
+                index.put(trou, valeur);
+                trou = j;
+            }
+        }
+        index.put(trou, 0);
+    }
+
+    private List<String> lireAdresses(int entree) {
+        ByteBuffer tranche = tranche(entree);
+        int base = base(entree);
+        int nb = tranche.get(base + OFF_NB_RECORDS);
+        List<String> adresses = new ArrayList<>(nb);
+        for (int i = 0; i < nb; i++) {
+            int position = base + OFF_RDATA + i * 4;
+            adresses.add((tranche.get(position) & 0xff) + "." + (tranche.get(position + 1) & 0xff) + "."
+                    + (tranche.get(position + 2) & 0xff) + "." + (tranche.get(position + 3) & 0xff));
+        }
+        return adresses;
+    }
+
+    private static boolean ecrireAdresse(ByteBuffer tranche, int position, String adresse) {
+        if (!DNSFileCompactor.estIPv4(adresse)) {
+            return false;
+        }
+        String[] octets = adresse.split("\\.");
+        for (int i = 0; i < 4; i++) {
+            tranche.put(position + i, (byte) Integer.parseInt(octets[i]));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+package dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Recherche du plus long prefixe correspondant (longest prefix match) pour
+ * des sous-reseaux IPv4 et IPv6.
+ *
+ * Trie binaire range dans deux tableaux d'entiers (enfants et valeurs) : un
+ * noeud n'est qu'un indice, sans objet ni pointeur a suivre pour le GC. Le
+ * noeud 0 est la racine IPv4, le noeud 1 la racine IPv6. Une recherche lit au
+ * plus 32 (ou 128) noeuds ; sa seule allocation est la copie des octets de
+ * l'adresse faite par InetAddress.getAddress() (4 ou 16 octets).
+ */
+public class PrefixTrie {
+
+    private static final int AUCUNE = -1;
+
+    private int[] enfants = new int[128]; //enfants[2n] : bit 0, enfants[2n+1] : bit 1 (0 = aucun)
+    private int[] valeurs = new int[64]; //valeur du noeud n, AUCUNE si pas de prefixe
+    private int nbNoeuds = 2;
+
+    public PrefixTrie() {
+        Arrays.fill(valeurs, AUCUNE);
+    }
+
+    /**
+     * @param prefixe : sous-reseau "adresse/longueur", ou adresse seule
+     * @param valeur : valeur associee (>= 0)
+     * @throws UnknownHostException si l'adresse n'est pas valide
+     */
+    public void ajouter(String prefixe, int valeur) throws UnknownHostException {
+        int barre = prefixe.indexOf('/');
+        String adresse = (barre < 0) ? prefixe : prefixe.substring(0, barre);
+        if (!Character.isDigit(adresse.charAt(0)) && adresse.indexOf(':') < 0) {
+            throw new UnknownHostException("Adresse invalide : " + prefixe); //pas de resolution de nom
+        }
+        byte[] octets = InetAddress.getByName(adresse).getAddress();
+        int longueur = (barre < 0) ? octets.length * 8 : Integer.parseInt(prefixe.substring(barre + 1));
+        if (longueur < 0 || longueur > octets.length * 8) {
+            throw new UnknownHostException("Longueur de prefixe invalide : " + prefixe);
+        }
+
+        int noeud = (octets.length == 4) ? 0 : 1;
+        for (int i = 0; i < longueur; i++) {
+            int bit = (octets[i >> 3] >> (7 - (i & 7))) & 1;
+            int enfant = enfants[2 * noeud + bit];
+            if (enfant == 0) {
+                enfant = nouveauNoeud();
+                enfants[2 * noeud + bit] = enfant;
+            }
+            noeud = enfant;
+        }
+        valeurs[noeud] = valeur;
+    }
+
+    /**
+     * @param adresse : adresse du client
+     * @return la valeur du plus long prefixe contenant l'adresse, ou -1
+     */
+    public int chercher(InetAddress adresse) {
+        byte[] octets = adresse.getAddress();
+        if (adresse instanceof Inet4Address) {
+            return chercherV4(((octets[0] & 0xff) << 24) | ((octets[1] & 0xff) << 16)
+                    | ((octets[2] & 0xff) << 8) | (octets[3] & 0xff));
+        }
+        int noeud = 1;
+        int trouvee = valeurs[noeud];
+        for (int i = 0; i < octets.length * 8; i++) {
+            noeud = enfants[2 * noeud + ((octets[i >> 3] >> (7 - (i & 7))) & 1)];
+            if (noeud == 0) {
+                break;
+            }
+            if (valeurs[noeud] != AUCUNE) {
+                trouvee = valeurs[noeud];
+            }
+        }
+        return trouvee;
+    }
+
+    private int chercherV4(int adresse) {
+        int noeud = 0;
+        int trouvee = valeurs[noeud];
+        for (int i = 31; i >= 0; i--) {
+            noeud = enfants[2 * noeud + ((adresse >>> i) & 1)];
+            if (noeud == 0) {
+                break;
+            }
+            if (valeurs[noeud] != AUCUNE) {
+                trouvee = valeurs[noeud];
+            }
+        }
+        return trouvee;
+    }
+
+    private int nouveauNoeud() {
+        if (nbNoeuds == valeurs.length) {
+            int taille = valeurs.length * 2;
+            valeurs = Arrays.copyOf(valeurs, taille);
+            Arrays.fill(valeurs, nbNoeuds, taille, AUCUNE);
+            enfants = Arrays.copyOf(enfants, taille * 2);
+        }
+        return nbNoeuds++;
+    }
+
+    /**
+     * @return nombre de noeuds du trie
+     */
+    public int getTaille() {
+        return nbNoeuds;
+    }
+}
@@ -88,10 +88,12 @@ import java.util.Scanner;
 		uneligne = scanneurFichierSource.nextLine();
 		hostnameFromFile = uneligne.split(" ");
 		
+		String cible = AnswerRecorder.normaliser(hostname);
 		while( scanneurFichierSource.hasNextLine() ){
 			uneligne = scanneurFichierSource.nextLine();
 			hostnameFromFile = uneligne.split(" ");
-			if(hostnameFromFile[0].equals(hostname)){
+			if(hostnameFromFile.length >= 2
+					&& AnswerRecorder.normaliser(hostnameFromFile[0]).equals(cible)){
 				adresslist.add(hostnameFromFile[1]);
 			}
 		}
@@ -0,0 +1,204 @@
+package dns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Journal binaire des transactions (requete du client + reponse envoyee),
+ * pour l'analyse hors ligne avec QueryLogReader.
+ *
+ * Les threads du serveur deposent les transactions dans une file bornee et
+ * n'attendent jamais : si la file est pleine, la transaction est perdue et
+ * comptee. Un thread de fond ecrit les fichiers et les fait tourner quand ils
+ * depassent tailleMax (journal, journal.1, ... journal.N, le plus ancien est
+ * supprime).
+ *
+ * Format d'un fichier : MAGIE (8 octets), puis des enregistrements precedes
+ * de leur longueur sur 2 octets :
+ *
+ *   horodatage ms (8) | famille 4/6 (1) | adresse (4/16) | port (2) | type (2)
+ *   | source (1) | rcode (1) | latence en microsecondes (4) | longueur du nom (1) | nom
+ *
+ * La longueur permet a un lecteur de sauter un enregistrement qu'il ne
+ * comprend pas.
+ */
+public class QueryLog extends Thread {
+
+    public static final byte[] MAGIE = "DNSQLOG1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Origine de la reponse envoyee au client
+     */
+    public enum Source {
+        FICHIER, //fichier DNS de la vue
+        CACHE, //cache de la vue
+        AMONT, //serveur de redirection
+        ITERATIF, //resolution iterative
+        PERIME, //donnees perimees (RFC 8767)
+        BLOQUE //liste de blocage
+    }
+
+    private static final class Transaction {
+
+        long horodatage;
+        InetAddress client;
+        int port;
+        String nom;
+        byte[] requete; //lue par le thread du journal seulement
+        Source source;
+        int rcode;
+        long latence; //ns
+    }
+
+    private final String fichier;
+    private final long tailleMax; //octets par fichier
+    private final int nbFichiers; //fichiers gardes en plus du fichier courant
+    private final ArrayBlockingQueue<Transaction> file;
+    private final LongAdder perdues = new LongAdder();
+
+    private DataOutputStream sortie = null;
+    private long taille = 0;
+
+    /**
+     * Constructeur
+     * @param fichier : fichier courant du journal
+     * @param tailleMax : taille d'un fichier avant rotation, en octets
+     * @param nbFichiers : nombre d'anciens fichiers gardes
+     * @param capacite : transactions en attente d'ecriture au plus
+     */
+    public QueryLog(String fichier, long tailleMax, int nbFichiers, int capacite) {
+        super("QueryLog");
+        this.fichier = fichier;
+        this.tailleMax = tailleMax;
+        this.nbFichiers = nbFichiers;
+        this.file = new ArrayBlockingQueue<>(capacite);
+        setDaemon(true);
+    }
+
+    /**
+     * Ajoute une transaction au journal, sans attendre
+     * @param client : adresse du client
+     * @param port : port du client
+     * @param nom : nom demande
+     * @param requete : paquet de la requete, pour le type demande
+     * @param source : origine de la reponse
+     * @param rcode : code de retour de la reponse
+     * @param latence : temps de traitement, en nanosecondes
+     */
+    public void journaliser(InetAddress client, int port, String nom, byte[] requete, Source source, int rcode, long latence) {
+        Transaction t = new Transaction();
+        t.horodatage = System.currentTimeMillis();
+        t.client = client;
+        t.port = port;
+        t.nom = nom;
+        t.requete = requete;
+        t.source = source;
+        t.rcode = rcode;
+        t.latence = latence;
+        if (!file.offer(t)) {
+            perdues.increment();
+        }
+    }
+
+    /**
+     * @return transactions perdues faute de place dans la file
+     */
+    public long getPerdues() {
+        return perdues.sum();
+    }
+
+    @Override
+    public void run() {
+        try {
+            ouvrir();
+            while (true) {
+                Transaction t = file.poll(1, TimeUnit.SECONDS);
+                if (t == null) {
+                    sortie.flush();
+                    continue;
+                }
+                ecrire(t);
+                // *Vider la file d'un coup, puis ecrire sur le disque
+                while ((t = file.poll()) != null) {
+                    ecrire(t);
+                }
+                sortie.flush();
+            }
+        } catch (InterruptedException e) {
+            // *arret du serveur
+        } catch (IOException e) {
+            System.err.println("Journal des requetes arrete : " + e.getMessage());
+        }
+    }
+
+    private void ecrire(Transaction t) throws IOException {
+        byte[] adresse = t.client.getAddress();
+        byte[] nom = t.nom.getBytes(StandardCharsets.ISO_8859_1);
+        int longueurNom = Math.min(nom.length, 255);
+        int longueur = 8 + 1 + adresse.length + 2 + 2 + 1 + 1 + 4 + 1 + longueurNom;
+        if (taille + 2 + longueur > tailleMax) {
+            tourner();
+        }
+        sortie.writeShort(longueur);
+        sortie.writeLong(t.horodatage);
+        sortie.writeByte(adresse.length == 4 ? 4 : 6);
+        sortie.write(adresse);
+        sortie.writeShort(t.port);
+        sortie.writeShort(lireType(t.requete));
+        sortie.writeByte(t.source.ordinal());
+        sortie.writeByte(t.rcode);
+        sortie.writeInt((int) Math.min(0xFFFFFFFFL, t.latence / 1000));
+        sortie.writeByte(longueurNom);
+        sortie.write(nom, 0, longueurNom);
+        taille += 2 + longueur;
+    }
+
+    private void ouvrir() throws IOException {
+        File f = new File(fichier);
+        boolean nouveau = !f.exists() || f.length() == 0;
+        sortie = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true), 64 * 1024));
+        taille = f.length();
+        if (nouveau) {
+            sortie.write(MAGIE);
+            taille = MAGIE.length;
+        }
+    }
+
+    /**
+     * journal.N-1 -> journal.N, ..., journal -> journal.1, puis un nouveau journal
+     */
+    private void tourner() throws IOException {
+        sortie.close();
+        for (int i = nbFichiers; i >= 1; i--) {
+            File ancien = new File((i == 1) ? fichier : fichier + "." + (i - 1));
+            File suivant = new File(fichier + "." + i);
+            if (ancien.exists()) {
+                suivant.delete();
+                ancien.renameTo(suivant);
+            }
+        }
+        if (nbFichiers <= 0) {
+            new File(fichier).delete();
+        }
+        ouvrir();
+    }
+
+    /**
+     * @return le type demande (QTYPE) de la premiere question, 0 si illisible
+     */
+    private static int lireType(byte[] requete) {
+        try {
+            return DNSMessage.lireQuestion(requete, requete.length).getQtype();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
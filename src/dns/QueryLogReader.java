@@ -0,0 +1,92 @@
+package dns;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Convertit les fichiers de QueryLog en CSV, sur la sortie standard :
+ *
+ *   java -cp GTI610_LAB04_Server_DNS.jar dns.QueryLogReader journal.2 journal.1 journal > requetes.csv
+ *
+ * Colonnes : horodatage (ms), client, port, nom, type, source, rcode, latence (microsecondes)
+ */
+public class QueryLogReader {
+
+    public static final String ENTETE = "horodatage,client,port,nom,type,source,rcode,latence_us";
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: QueryLogReader <journal> [journal...]");
+            System.exit(1);
+        }
+        System.out.println(ENTETE);
+        for (String fichier : args) {
+            try {
+                versCsv(fichier, System.out);
+            } catch (IOException e) {
+                System.err.println(fichier + " : " + e.getMessage());
+            }
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Ecrit une ligne CSV par transaction du fichier. Un fichier tronque par
+     * un arret du serveur est lu jusqu'au dernier enregistrement complet.
+     * @param fichier : fichier de journal
+     * @param sortie : destination des lignes
+     * @return nombre de transactions lues
+     * @throws IOException si le fichier n'est pas un journal
+     */
+    public static long versCsv(String fichier, PrintStream sortie) throws IOException {
+        long nombre = 0;
+        DataInputStream entree = new DataInputStream(new BufferedInputStream(new FileInputStream(fichier), 64 * 1024));
+        try {
+            byte[] magie = new byte[QueryLog.MAGIE.length];
+            entree.readFully(magie);
+            if (!Arrays.equals(magie, QueryLog.MAGIE)) {
+                throw new IOException("pas un journal de requetes");
+            }
+            QueryLog.Source[] sources = QueryLog.Source.values();
+            byte[] enregistrement = new byte[0xFFFF];
+            while (true) {
+                int longueur;
+                try {
+                    longueur = entree.readUnsignedShort();
+                    entree.readFully(enregistrement, 0, longueur);
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream champs = new DataInputStream(new ByteArrayInputStream(enregistrement, 0, longueur));
+                long horodatage = champs.readLong();
+                byte[] adresse = new byte[(champs.readUnsignedByte() == 4) ? 4 : 16];
+                champs.readFully(adresse);
+                int port = champs.readUnsignedShort();
+                int type = champs.readUnsignedShort();
+                int source = champs.readUnsignedByte();
+                int rcode = champs.readUnsignedByte();
+                long latence = champs.readInt() & 0xFFFFFFFFL;
+                byte[] nom = new byte[champs.readUnsignedByte()];
+                champs.readFully(nom);
+
+                sortie.println(horodatage + "," + InetAddress.getByAddress(adresse).getHostAddress() + "," + port + ","
+                        + new String(nom, StandardCharsets.ISO_8859_1) + "," + type + ","
+                        + ((source < sources.length) ? sources[source].name().toLowerCase(Locale.ROOT) : String.valueOf(source)) + ","
+                        + rcode + "," + latence);
+                nombre++;
+            }
+        } finally {
+            entree.close();
+        }
+        return nombre;
+    }
+}
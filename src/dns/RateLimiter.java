@@ -0,0 +1,147 @@
+package dns;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limitation du debit de reponses par client (Response Rate Limiting).
+ *
+ * Chaque client est ramene a son prefixe (ex /24 en IPv4, /56 en IPv6) et
+ * associe a un seau a jetons dans une table de taille fixe. Un seau tient
+ * dans un seul long mis a jour par compare-and-set, sans verrou :
+ *
+ *   etiquette (8 bits) | refus modulo slip (4 bits) | jetons en 1/16 (20 bits)
+ *   | dernier remplissage en ms (32 bits)
+ *
+ * Le compteur de refus rend le slip deterministe : la slip-ieme requete
+ * refusee d'un prefixe recoit une reponse tronquee, les autres aucune.
+ *
+ * Deux prefixes qui tombent sur la meme case se partagent la case : quand
+ * l'etiquette ne correspond pas, le seau est reinitialise pour le nouveau
+ * prefixe. La memoire reste donc fixe quel que soit le nombre de clients.
+ */
+public class RateLimiter {
+
+    /**
+     * Decision prise pour une requete
+     */
+    public enum Decision {
+        REPONDRE, //sous la limite
+        TRONQUER, //au-dessus de la limite : reponse vide avec TC=1, le client reessaie en TCP
+        IGNORER //au-dessus de la limite : aucune reponse
+    }
+
+    private static final int FRACTION = 16; //jetons stockes en 1/16 de jeton
+    private static final long MAX_JETONS = 0xFFFFF;
+    public static final int MAX_RAFALE = (int) (MAX_JETONS / FRACTION);
+    public static final int MAX_SLIP = 0xF;
+
+    private final AtomicLongArray seaux;
+    private final int masque;
+    private final long debit; //jetons par seconde, en 1/FRACTION de jeton
+    private final long rafale; //taille du seau, en 1/FRACTION de jeton
+    private final int slip; //1 reponse tronquee toutes les slip requetes refusees (0 = aucune)
+    private final int prefixeV4;
+    private final int prefixeV6;
+
+    /**
+     * Constructeur
+     * @param taille : nombre de seaux (arrondi a une puissance de 2)
+     * @param debit : reponses par seconde permises par prefixe
+     * @param rafale : reponses permises d'un coup (1 a MAX_RAFALE)
+     * @param slip : une requete refusee sur slip recoit une reponse tronquee
+     *   (0 = toutes ignorees, 1 = toutes tronquees, au plus MAX_SLIP)
+     * @param prefixeV4 : longueur de prefixe des clients IPv4
+     * @param prefixeV6 : longueur de prefixe des clients IPv6
+     * @throws IllegalArgumentException si rafale ou slip est hors limites
+     */
+    public RateLimiter(int taille, int debit, int rafale, int slip, int prefixeV4, int prefixeV6) {
+        if (rafale < 1 || rafale > MAX_RAFALE) {
+            throw new IllegalArgumentException("Rafale entre 1 et " + MAX_RAFALE + " : " + rafale);
+        }
+        if (slip < 0 || slip > MAX_SLIP) {
+            throw new IllegalArgumentException("Slip entre 0 et " + MAX_SLIP + " : " + slip);
+        }
+        int cases = Integer.highestOneBit(Math.max(2, taille) * 2 - 1);
+        this.seaux = new AtomicLongArray(cases);
+        this.masque = cases - 1;
+        this.debit = (long) debit * FRACTION;
+        this.rafale = (long) rafale * FRACTION;
+        this.slip = slip;
+        this.prefixeV4 = prefixeV4;
+        this.prefixeV6 = prefixeV6;
+    }
+
+    /**
+     * Consomme un jeton pour le client
+     * @param client : adresse source de la requete
+     * @return la decision pour cette requete
+     */
+    public Decision verifier(InetAddress client) {
+        long cle = cle(client);
+        int position = (int) cle & masque;
+        long etiquette = cle >>> 56;
+        long maintenant = System.currentTimeMillis() & 0xFFFFFFFFL;
+
+        while (true) {
+            long seau = seaux.get(position);
+            long jetons;
+            long refus = 0;
+            long temps = maintenant;
+            if (seau == 0 || (seau >>> 56) != etiquette) {
+                jetons = rafale; //case vide ou prise par un autre prefixe
+            } else {
+                refus = (seau >>> 52) & 0xF;
+                long ecoule = (maintenant - (seau & 0xFFFFFFFFL)) & 0xFFFFFFFFL;
+                long ajout = ecoule * debit / 1000;
+                if (ajout == 0) {
+                    temps = seau & 0xFFFFFFFFL; //rien a ajouter : on garde le temps accumule
+                }
+                jetons = Math.min(rafale, ((seau >>> 32) & 0xFFFFF) + ajout);
+            }
+
+            boolean accepte = jetons >= FRACTION;
+            boolean tronque = false;
+            if (accepte) {
+                jetons -= FRACTION;
+            } else if (slip > 0) {
+                // *Compter les refus : la slip-ieme recoit une reponse tronquee
+                refus = (refus + 1) % slip;
+                tronque = refus == 0;
+            }
+            long nouveau = (etiquette << 56) | (refus << 52) | (jetons << 32) | temps;
+            if (seaux.compareAndSet(position, seau, nouveau)) {
+                if (accepte) {
+                    return Decision.REPONDRE;
+                }
+                return tronque ? Decision.TRONQUER : Decision.IGNORER;
+            }
+        }
+    }
+
+    /**
+     * Empreinte 64 bits du prefixe du client
+     */
+    private long cle(InetAddress client) {
+        byte[] adresse = client.getAddress();
+        int bits = (adresse.length == 4) ? prefixeV4 : prefixeV6;
+        long h = 0xcbf29ce484222325L ^ adresse.length;
+        for (int i = 0; i < adresse.length; i++) {
+            int restant = bits - i * 8;
+            int octet;
+            if (restant >= 8) {
+                octet = adresse[i] & 0xff;
+            } else if (restant > 0) {
+                octet = adresse[i] & (0xff << (8 - restant)) & 0xff;
+            } else {
+                octet = 0;
+            }
+            h ^= octet;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
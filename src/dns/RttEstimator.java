@@ -0,0 +1,144 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delai de relance adaptatif par serveur amont, calcule comme le RTO de TCP
+ * (RFC 6298) :
+ *
+ *   SRTT   = 7/8 SRTT + 1/8 R
+ *   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *   RTO    = SRTT + 4 RTTVAR, borne par [rtoMin, rtoMax]
+ *
+ * Chaque expiration double le RTO du serveur (backoff) jusqu'a la prochaine
+ * mesure valide. Seules les reponses a une requete envoyee une seule fois
+ * sont mesurees (algorithme de Karn) : apres une relance, on ne sait pas a
+ * quel envoi la reponse correspond.
+ */
+public class RttEstimator {
+
+    /**
+     * Etat d'un serveur amont, les temps sont en millisecondes
+     */
+    public static final class Etat {
+
+        private final InetSocketAddress serveur;
+        private double srtt = -1; //-1 : aucune mesure
+        private double rttvar = 0;
+        private long rto;
+
+        private Etat(InetSocketAddress serveur, long rto) {
+            this.serveur = serveur;
+            this.rto = rto;
+        }
+
+        public InetSocketAddress getServeur() {
+            return serveur;
+        }
+
+        public synchronized long getSrtt() {
+            return Math.round(srtt);
+        }
+
+        public synchronized long getRttvar() {
+            return Math.round(rttvar);
+        }
+
+        public synchronized long getRto() {
+            return rto;
+        }
+    }
+
+    private final ConcurrentHashMap<InetSocketAddress, Etat> etats = new ConcurrentHashMap<>();
+    private final long rtoInitial;
+    private final long rtoMin;
+    private final long rtoMax;
+
+    /**
+     * Constructeur
+     * @param rtoInitial : delai avant la premiere mesure (ms)
+     * @param rtoMin : delai minimal (ms)
+     * @param rtoMax : delai maximal, aussi la limite du backoff (ms)
+     */
+    public RttEstimator(long rtoInitial, long rtoMin, long rtoMax) {
+        this.rtoMin = Math.max(1, rtoMin);
+        this.rtoMax = Math.max(this.rtoMin, rtoMax);
+        this.rtoInitial = borner(rtoInitial);
+    }
+
+    private Etat etat(InetSocketAddress serveur) {
+        return etats.computeIfAbsent(serveur, (s) -> new Etat(s, rtoInitial));
+    }
+
+    /**
+     * @return le delai a attendre avant de relancer une requete envoyee a ce serveur (ms)
+     */
+    public long getRto(InetSocketAddress serveur) {
+        return etat(serveur).getRto();
+    }
+
+    /**
+     * Prend en compte le temps de reponse d'une requete envoyee une seule fois
+     * @param serveur : serveur qui a repondu
+     * @param rtt : temps de reponse mesure (ms)
+     */
+    public void mesurer(InetSocketAddress serveur, long rtt) {
+        Etat e = etat(serveur);
+        synchronized (e) {
+            if (e.srtt < 0) {
+                e.srtt = rtt;
+                e.rttvar = rtt / 2.0;
+            } else {
+                e.rttvar = 0.75 * e.rttvar + 0.25 * Math.abs(e.srtt - rtt);
+                e.srtt = 0.875 * e.srtt + 0.125 * rtt;
+            }
+            e.rto = borner(Math.round(e.srtt + Math.max(1, 4 * e.rttvar)));
+        }
+    }
+
+    /**
+     * Le serveur n'a pas repondu dans son RTO : le delai est double
+     */
+    public void expirer(InetSocketAddress serveur) {
+        Etat e = etat(serveur);
+        synchronized (e) {
+            e.rto = borner(e.rto * 2);
+        }
+    }
+
+    /**
+     * Choisit le serveur qui devrait repondre le plus vite
+     * @param serveurs : serveurs possibles
+     * @param exclu : serveur a eviter s'il y en a d'autres (dernier essaye), ou null
+     * @return le serveur de plus petit RTO, null si la liste est vide
+     */
+    public InetSocketAddress choisir(List<InetSocketAddress> serveurs, InetSocketAddress exclu) {
+        InetSocketAddress meilleur = null;
+        long meilleurRto = Long.MAX_VALUE;
+        for (InetSocketAddress serveur : serveurs) {
+            if (serveur.equals(exclu) && serveurs.size() > 1) {
+                continue;
+            }
+            long rto = getRto(serveur);
+            if (rto < meilleurRto) {
+                meilleur = serveur;
+                meilleurRto = rto;
+            }
+        }
+        return meilleur;
+    }
+
+    /**
+     * @return l'etat des serveurs deja utilises, pour le canal d'administration
+     */
+    public List<Etat> lister() {
+        return new ArrayList<>(etats.values());
+    }
+
+    private long borner(long rto) {
+        return Math.min(rtoMax, Math.max(rtoMin, rto));
+    }
+}
@@ -0,0 +1,56 @@
+package dns;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compteurs du serveur, incrementes par les threads de traitement et lus
+ * par le canal d'administration. LongAdder evite la contention entre les
+ * threads qui incrementent le meme compteur.
+ */
+public class ServerStats {
+
+    public enum Compteur {
+        REQUETES, //requetes recues des clients
+        REPONSES_CACHE, //repondues depuis le cache
+        REPONSES_FICHIER, //repondues depuis le fichier DNS
+        REDIRECTIONS, //envoyees au serveur de redirection
+        REPONSES_AMONT, //reponses recues du serveur de redirection
+        RESOLUTIONS_ITERATIVES, //confiees au resolveur iteratif
+        BLOQUEES, //domaines filtres par la liste de blocage
+        REPONSES_PERIMEES, //donnees perimees servies faute de reponse amont (RFC 8767)
+        RELANCES_AMONT, //requetes renvoyees apres le delai adaptatif (RTO)
+        BASCULES_AMONT, //relances envoyees a un autre serveur de redirection
+        ECHECS_AMONT, //requetes abandonnees sans reponse amont (SERVFAIL)
+        LIMITEES //requetes au-dessus de la limite de debit du client
+    }
+
+    private final LongAdder[] compteurs = new LongAdder[Compteur.values().length];
+    private final long demarrage = System.currentTimeMillis();
+
+    public ServerStats() {
+        for (int i = 0; i < compteurs.length; i++) {
+            compteurs[i] = new LongAdder();
+        }
+    }
+
+    public void incrementer(Compteur compteur) {
+        compteurs[compteur.ordinal()].increment();
+    }
+
+    public long get(Compteur compteur) {
+        return compteurs[compteur.ordinal()].sum();
+    }
+
+    /**
+     * @return duree depuis le lancement, en secondes
+     */
+    public long getDuree() {
+        return (System.currentTimeMillis() - demarrage) / 1000;
+    }
+
+    public void reinitialiser() {
+        for (LongAdder compteur : compteurs) {
+            compteur.reset();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package dns;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
  /**
  * Application principale qui lance les autres processus
@@ -55,7 +56,7 @@ public class ServeurDNS {
 				UDPR.setRedirectionSeulement(false);
 				
 				// et on lance le thread
-				UDPR.start();
+				lancer(UDPR, "DNSFILE.TXT");
 			}
 			else{
 				System.out.print("L'�x�cution par d�faut n'a pas d'autres arguments");
@@ -107,12 +108,166 @@ public class ServeurDNS {
 						UDPR.setRedirectionSeulement(true);
 					}
 					// et on lance le thread
-					UDPR.start();
+					lancer(UDPR, args[1]);
 				}
 				else
 					System.out.println("Un argument est manquant!");
 			}
 		}
 	}	
+	
+	/**
+	 * Lance le thread de reception ainsi que les taches de fond
+	 * Options (proprietes systeme, -Dnom=valeur) :
+	 *  dns.compaction.intervalle : secondes entre deux compactions du fichier DNS (0 = desactive, defaut 300),
+	 *      une compaction ne retire que les doublons exacts
+	 *  dns.compaction.adresses : adresses gardees par hostname lors d'une compaction, les plus recentes
+	 *      (0 = sans limite, defaut 0)
+	 *  dns.compaction.entrees : lignes gardees dans le fichier lors d'une compaction, les plus recentes
+	 *      (0 = sans limite, defaut 0)
+	 *  dns.blocklist : listes de domaines bloques, separees par des virgules
+	 *  dns.sinkhole : adresse renvoyee pour un domaine bloque (defaut : reponse NXDOMAIN)
+	 *  dns.cache.entrees : nombre de hostnames gardes dans le cache hors du tas (0 = desactive, defaut 100000,
+	 *    au plus OffHeapRecordStore.MAX_CAPACITE)
+	 *  dns.cache.ttl : duree de vie en cache d'une entree du fichier DNS, et TTL maximal
+	 *    d'une reponse amont gardee en cache, en secondes (defaut 300)
+	 *  dns.stale.fenetre : secondes pendant lesquelles une entree expiree peut encore etre servie (defaut 86400)
+	 *  dns.stale.delai : attente de la reponse amont avant de servir une entree expiree, en ms (defaut 1800)
+	 *  dns.stale.ttl : TTL des reponses expirees, en secondes (defaut 30)
+	 *  dns.amont.abandon : abandon d'une requete sans reponse amont (SERVFAIL), en ms (defaut 10000)
+	 *  dns.amont.rto.initial / dns.amont.rto.min / dns.amont.rto.max : delai de relance adaptatif
+	 *    vers un serveur de redirection, en ms (defaut 1000 / 50 / 4000) ; plusieurs serveurs
+	 *    "ip[:port]" separes par des virgules permettent de basculer de l'un a l'autre
+	 *  dns.amont.sockets : sockets vers les serveurs de redirection, chacun sur un port source au hasard (defaut 4)
+	 *  dns.amont.renouvellement : requetes envoyees par un de ces sockets avant qu'il change de port (0 = jamais, defaut 1000)
+	 *  dns.mode : "iteratif" pour resoudre a partir des serveurs racines au lieu de rediriger ; seuls les
+	 *      enregistrements A sont resolus, les autres types recoivent NOTIMP
+	 *  dns.iteratif.racines : serveurs racines "ip[:port]" separes par des virgules (defaut : racines IANA)
+	 *  dns.iteratif.port : port des serveurs de noms appris par referral (defaut 53)
+	 *  dns.iteratif.threads : nombre de resolutions simultanees (defaut 16)
+	 *  dns.iteratif.delai : attente d'une reponse en millisecondes (defaut 2000)
+	 *  dns.vues : fichier de vues (split-horizon), une vue par ligne "nom fichierDNS serveur prefixe[,prefixe...]"
+	 *    le cache d'une vue est dimensionne selon son fichier DNS, dans la limite de dns.cache.entrees
+	 *    les clients hors de tout prefixe utilisent la vue par defaut (fichier DNS et serveur ci-dessus)
+	 *  dns.journal : fichier du journal binaire des transactions (defaut : desactive),
+	 *    converti en CSV par "java -cp GTI610_LAB04_Server_DNS.jar dns.QueryLogReader <fichiers>"
+	 *  dns.journal.taille : taille d'un fichier du journal avant rotation, en Mo (defaut 64)
+	 *  dns.journal.fichiers : nombre d'anciens fichiers du journal gardes (defaut 4)
+	 *  dns.journal.attente : transactions en attente d'ecriture au plus, au-dela elles sont perdues (defaut 65536)
+	 *  dns.rotation.defaut : ordre des adresses d'un nom qui en a plusieurs : fixe, tourniquet
+	 *    ou aleatoire (defaut tourniquet)
+	 *  dns.rotation : fichier de politiques par nom, une par ligne "nom politique [ip=poids,...]"
+	 *    (ex "api.interne pondere 10.0.0.1=3,10.0.0.2=1")
+	 *  dns.admin.port : port TCP du canal d'administration, sur loopback (defaut : desactive)
+	 *  dns.rrl.debit : reponses par seconde permises par prefixe client (0 = desactive, defaut 0)
+	 *  dns.rrl.rafale : reponses permises d'un coup (defaut 2 x debit, au plus RateLimiter.MAX_RAFALE)
+	 *  dns.rrl.slip : une requete refusee sur slip recoit une reponse tronquee (0 = aucune, defaut 2,
+	 *    au plus RateLimiter.MAX_SLIP)
+	 *  dns.rrl.prefixe4 / dns.rrl.prefixe6 : longueur des prefixes clients (defaut 24 / 56)
+	 *  dns.rrl.seaux : taille de la table de seaux (defaut 65536)
+	 * @param UDPR : receveur configure
+	 * @param dnsFile : fichier DNS utilise par le receveur
+	 */
+	private static void lancer(UDPReceiver UDPR, String dnsFile) {
+		int entrees = Integer.getInteger("dns.cache.entrees", 100000);
+		if (entrees < 0 || entrees > OffHeapRecordStore.MAX_CAPACITE) {
+			System.err.println("dns.cache.entrees doit etre entre 0 et " + OffHeapRecordStore.MAX_CAPACITE + " : " + entrees);
+			return;
+		}
+		long intervalle = Long.getLong("dns.compaction.intervalle", 300);
+		if (intervalle > 0) {
+			compacter(dnsFile, intervalle);
+		}
+		if (entrees > 0) {
+			OffHeapRecordStore cache = new OffHeapRecordStore(entrees);
+			cache.setFenetreStale(Long.getLong("dns.stale.fenetre", 86400));
+			UDPR.setCache(cache, Long.getLong("dns.cache.ttl", 300));
+			System.out.println("Cache : " + entrees + " entrees (" + cache.getMemoire() / (1024 * 1024) + " Mo hors du tas)");
+		}
+		UDPR.setServiceStale(Long.getLong("dns.stale.delai", 1800), Long.getLong("dns.stale.ttl", 30),
+				Long.getLong("dns.amont.abandon", 10000));
+		UDPR.setNbSocketsAmont(Integer.getInteger("dns.amont.sockets", 4));
+		UDPR.setRenouvellementAmont(Integer.getInteger("dns.amont.renouvellement", 1000));
+		UDPR.setEstimateurRtt(new RttEstimator(Long.getLong("dns.amont.rto.initial", 1000),
+				Long.getLong("dns.amont.rto.min", 50), Long.getLong("dns.amont.rto.max", 4000)));
+		if ("iteratif".equals(System.getProperty("dns.mode"))) {
+			int port = Integer.getInteger("dns.iteratif.port", 53);
+			IterativeResolver resolver = new IterativeResolver(
+					IterativeResolver.lireServeurs(System.getProperty("dns.iteratif.racines", IterativeResolver.RACINES_IANA), port),
+					Integer.getInteger("dns.iteratif.threads", 16));
+			resolver.setPortServeurs(port);
+			resolver.setDelai(Integer.getInteger("dns.iteratif.delai", 2000));
+			UDPR.setResolver(resolver);
+		}
+		String listes = System.getProperty("dns.blocklist");
+		if (listes != null) {
+			try {
+				UDPR.setBlocklist(DomainBlocklist.charger(Arrays.asList(listes.split(","))));
+				UDPR.setSinkhole(System.getProperty("dns.sinkhole"));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		String fichierVues = System.getProperty("dns.vues");
+		if (fichierVues != null) {
+			try {
+				for (View vue : View.charger(fichierVues, entrees, Long.getLong("dns.stale.fenetre", 86400))) {
+					UDPR.ajouterVue(vue);
+					if (intervalle > 0) {
+						compacter(vue.getDNSFile(), intervalle);
+					}
+					System.out.println("Vue " + vue.getNom() + " : " + vue.getPrefixes());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		int debit = Integer.getInteger("dns.rrl.debit", 0);
+		if (debit > 0) {
+			try {
+				UDPR.setRateLimiter(new RateLimiter(Integer.getInteger("dns.rrl.seaux", 65536), debit,
+						Integer.getInteger("dns.rrl.rafale", (int) Math.min(2L * debit, RateLimiter.MAX_RAFALE)),
+						Integer.getInteger("dns.rrl.slip", 2),
+						Integer.getInteger("dns.rrl.prefixe4", 24), Integer.getInteger("dns.rrl.prefixe6", 56)));
+			} catch (IllegalArgumentException e) {
+				System.err.println("dns.rrl : " + e.getMessage());
+				return;
+			}
+		}
+		try {
+			AnswerRotation.Politique politique = AnswerRotation.lirePolitique(System.getProperty("dns.rotation.defaut", "tourniquet"));
+			String fichierRotation = System.getProperty("dns.rotation");
+			if (fichierRotation != null) {
+				AnswerRotation rotation = AnswerRotation.charger(fichierRotation, politique);
+				UDPR.setRotation(rotation);
+				System.out.println("Rotation : " + rotation.getTaille() + " nom(s) configure(s)");
+			} else {
+				UDPR.setRotation(new AnswerRotation(politique));
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+		String journal = System.getProperty("dns.journal");
+		if (journal != null) {
+			UDPR.setJournal(new QueryLog(journal, Long.getLong("dns.journal.taille", 64) * 1024 * 1024,
+					Integer.getInteger("dns.journal.fichiers", 4), Integer.getInteger("dns.journal.attente", 65536)));
+		}
+		Integer portAdmin = Integer.getInteger("dns.admin.port");
+		if (portAdmin != null) {
+			new AdminServer(UDPR, portAdmin).start();
+		}
+		UDPR.start();
+	}
+
+	/**
+	 * Demarre la compaction periodique d'un fichier DNS, avec les limites
+	 * dns.compaction.adresses et dns.compaction.entrees
+	 */
+	private static void compacter(String fichier, long intervalle) {
+		DNSFileCompactor compacteur = new DNSFileCompactor(fichier, intervalle * 1000);
+		compacteur.setMaxAdressesParHost(Integer.getInteger("dns.compaction.adresses", 0));
+		compacteur.setMaxEntrees(Integer.getInteger("dns.compaction.entrees", 0));
+		compacteur.start();
+	}
 }
 
@@ -0,0 +1,127 @@
+package dns;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Roue de temporisation (hashed timing wheel) : un seul thread pour tous les
+ * delais des requetes en cours, au lieu d'une tache planifiee par requete.
+ *
+ * Le temps est decoupe en tics ; un delai est range dans la case de son tic
+ * d'echeance (modulo le nombre de cases). A chaque tic, le thread parcourt une
+ * seule case et execute les delais echus ; ceux des tours suivants restent en
+ * place. Planifier et annuler sont en O(1) et sans verrou : les nouveaux
+ * delais passent par une file concurrente videe par le thread de la roue.
+ *
+ * Les taches s'executent sur le thread de la roue et doivent donc etre
+ * courtes (envoi d'un paquet, pas de resolution).
+ */
+public class TimerWheel extends Thread {
+
+    /**
+     * Delai planifie, annulable
+     */
+    public static final class Delai {
+
+        private final Runnable tache;
+        private final long echeance; //ms
+        private volatile boolean annule = false;
+
+        private Delai(Runnable tache, long echeance) {
+            this.tache = tache;
+            this.echeance = echeance;
+        }
+
+        /**
+         * La tache ne sera pas executee ; le delai est retire de sa case au
+         * prochain passage de la roue
+         */
+        public void annuler() {
+            annule = true;
+        }
+    }
+
+    private final long tic; //duree d'un tic (ms)
+    private final List<ArrayDeque<Delai>> cases; //lues et modifiees par le seul thread de la roue
+    private final int masque;
+    private final ConcurrentLinkedQueue<Delai> nouveaux = new ConcurrentLinkedQueue<>();
+    private long dernierTic;
+
+    /**
+     * Constructeur
+     * @param nom : nom du thread
+     * @param tic : precision des delais, en millisecondes
+     * @param nbCases : nombre de cases (arrondi a une puissance de 2), un tour dure nbCases x tic
+     */
+    public TimerWheel(String nom, long tic, int nbCases) {
+        super(nom);
+        this.tic = Math.max(1, tic);
+        int taille = Integer.highestOneBit(Math.max(2, nbCases) * 2 - 1);
+        this.cases = new ArrayList<>(taille);
+        for (int i = 0; i < taille; i++) {
+            cases.add(new ArrayDeque<>());
+        }
+        this.masque = taille - 1;
+        this.dernierTic = System.currentTimeMillis() / this.tic - 1;
+        setDaemon(true);
+    }
+
+    /**
+     * Planifie une tache
+     * @param delai : attente en millisecondes
+     * @param tache : tache executee sur le thread de la roue
+     * @return le delai, pour l'annuler
+     */
+    public Delai planifier(long delai, Runnable tache) {
+        Delai d = new Delai(tache, System.currentTimeMillis() + Math.max(0, delai));
+        nouveaux.add(d);
+        return d;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(tic);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long maintenant = System.currentTimeMillis();
+            Delai d;
+            while ((d = nouveaux.poll()) != null) {
+                if (!d.annule) {
+                    // *Un delai deja echu est range dans la case du tic suivant
+                    cases.get((int) (Math.max(d.echeance / tic, dernierTic + 1) & masque)).add(d);
+                }
+            }
+            long ticTermine = maintenant / tic - 1; //dernier tic entierement ecoule
+            for (long t = dernierTic + 1; t <= ticTermine; t++) {
+                expirer(cases.get((int) (t & masque)), maintenant);
+                if (t - dernierTic > masque) {
+                    break; //la roue a fait un tour complet (pause du thread)
+                }
+            }
+            dernierTic = ticTermine;
+        }
+    }
+
+    private void expirer(ArrayDeque<Delai> liste, long maintenant) {
+        Iterator<Delai> it = liste.iterator();
+        while (it.hasNext()) {
+            Delai d = it.next();
+            if (d.annule) {
+                it.remove();
+            } else if (d.echeance <= maintenant) {
+                it.remove();
+                try {
+                    d.tache.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+}
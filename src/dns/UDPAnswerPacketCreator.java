@@ -15,6 +15,15 @@ public class UDPAnswerPacketCreator {
 	
 	Answerpacket answer_pkt; //peut etre etendu en liste
 	
+	/** Codes de retour (RCODE) utilises par CreateErrorPacket */
+	public static final int RCODE_SERVFAIL = 2;
+	public static final int RCODE_NXDOMAIN = 3;
+	public static final int RCODE_NOTIMP = 4;
+	public static final int RCODE_REFUSED = 5;
+	
+	/** TTL des reponses (0x00011a6c) */
+	public static final long TTL_DEFAUT = 72300;
+	
 	/** 
 	 * Doit etre utiliser apres CreateAnswerPacket
 	 * @return le packet de reponse creer
@@ -52,6 +61,29 @@ public class UDPAnswerPacketCreator {
 	 * @return tableau de bytes donnant un packet de reponse DNS
 	 */
 	public byte[] CreateAnswerPacket(byte[] Qpacket,List<String> listadrr){
+		return CreateAnswerPacket(Qpacket, listadrr, TTL_DEFAUT);
+	}
+	
+	/**
+	 * 
+	 * @param Qpacket : Datagrame packet de la query DNS
+	 * @param listadrr : Adresse IP (v4) a transmettre comme reponse
+	 * @param ttl : TTL des enregistrements, en secondes
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateAnswerPacket(byte[] Qpacket,List<String> listadrr,long ttl){
+		return CreateAnswerPacket(Qpacket, listadrr, null, ttl);
+	}
+	
+	/**
+	 * 
+	 * @param Qpacket : Datagrame packet de la query DNS
+	 * @param listadrr : Adresse IP (v4) a transmettre comme reponse
+	 * @param ordre : indices des adresses dans l'ordre de la reponse (voir AnswerRotation), null = ordre de la liste
+	 * @param ttl : TTL des enregistrements, en secondes
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateAnswerPacket(byte[] Qpacket,List<String> listadrr,int[] ordre,long ttl){
 		Answerpacket answer = new Answerpacket();
 		int ancount = listadrr.size();
 		if(ancount == 0){
@@ -70,10 +102,17 @@ public class UDPAnswerPacketCreator {
 		}
 		//System.out.println("\r");
 		
+		//fin du qname de la requete : le paquet de reponse fait l'en-tete,
+		//la question (qname + type + class) et ancount reponses de 16 octets
+		int fin = 12;
+		while (Qpacket[fin] != 0) {
+			fin += Qpacket[fin] + 1;
+		}
+		
 		//copie les informations dans un tableau qui est utilise de buffer
-		//durant la modification du packet
-		byte[] tmp_packet = new byte[1024];
-		System.arraycopy(Qpacket, 0, tmp_packet, 0, Qpacket.length);
+		//durant la modification du packet (la suite de la requete, ex EDNS, n'est pas reprise)
+		byte[] tmp_packet = new byte[fin + 5 + ancount * 16];
+		System.arraycopy(Qpacket, 0, tmp_packet, 0, fin + 5);
 		
 		//copie de l'identifiant
 		tmp_packet[0] = (byte)Qpacket[0];
@@ -141,10 +180,10 @@ public class UDPAnswerPacketCreator {
 			tmp_packet[j + 5] = (byte) 0x01; //class & 0x00FF
 			
 			//TTL
-			tmp_packet[j + 6] = (byte) 0x00;
-			tmp_packet[j + 7] = (byte) 0x01;
-			tmp_packet[j + 8] = (byte) 0x1a;
-			tmp_packet[j + 9] = (byte) (0x6c);
+			tmp_packet[j + 6] = (byte) ((ttl >> 24) & 0xFF);
+			tmp_packet[j + 7] = (byte) ((ttl >> 16) & 0xFF);
+			tmp_packet[j + 8] = (byte) ((ttl >> 8) & 0xFF);
+			tmp_packet[j + 9] = (byte) (ttl & 0xFF);
 			
 			
 			//Grace a l'index de position, nous somme en mesure
@@ -154,7 +193,7 @@ public class UDPAnswerPacketCreator {
 			tmp_packet[j + 11] = (byte) 0x04;//taille RDLENGHT 0x00FF
 			
 			//Conversion de l'adresse IP de String en byte
-			String adrr = listadrr.get(i);
+			String adrr = listadrr.get((ordre == null) ? i : ordre[i]);
 			//System.out.println("Adr to transmit="+adrr);
 			adrr = adrr.replace("."," ");
 			String[] adr = adrr.split(" ");
@@ -196,6 +235,44 @@ public class UDPAnswerPacketCreator {
 		return answer.bytes;
 	}
 	
+	/**
+	 * Cree une reponse sans enregistrement (ex NXDOMAIN) a partir de la query
+	 * @param Qpacket : Datagrame packet de la query DNS
+	 * @param rcode : code de retour a placer dans l'en-tete (RCODE_*)
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateErrorPacket(byte[] Qpacket, int rcode){
+		//fin de la section question : qname + type + class
+		int index = 12;
+		while (index < Qpacket.length && Qpacket[index] != 0) {
+			index += (Qpacket[index] & 0xff) + 1;
+		}
+		int longueur = Math.min(index + 5, Qpacket.length);
+		
+		byte[] packet = new byte[longueur];
+		System.arraycopy(Qpacket, 0, packet, 0, longueur);
+		packet[2] = (byte) (0x80 | (Qpacket[2] & 0x79)); //QR + opcode + RD de la query
+		packet[3] = (byte) (0x80 | (rcode & 0x0F)); //RA + RCODE
+		packet[4] = (byte) 0x00; //Qcount
+		packet[5] = (byte) 0x01;
+		for (int i = 6; i < 12; i++) { //Ancount, NScount, ARcount
+			packet[i] = (byte) 0x00;
+		}
+		return packet;
+	}
+	
+	/**
+	 * Cree une reponse vide avec le bit TC (tronque) : le client doit reposer
+	 * sa question, normalement en TCP. Utilise par la limitation de debit.
+	 * @param Qpacket : Datagrame packet de la query DNS
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateTruncatedPacket(byte[] Qpacket){
+		byte[] packet = CreateErrorPacket(Qpacket, 0);
+		packet[2] |= (byte) 0x02; //TC
+		return packet;
+	}
+	
 	int unsignedIP(int data){
 		int tmp=0;
 		if( (data&(0x80))==(0x80) )
@@ -1,11 +1,16 @@
 package dns;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -53,13 +58,89 @@ public class UDPReceiver extends Thread {
     private String DomainName = "none";
     private String DNSFile = null;
     private boolean RedirectionSeulement = false;
+    private DomainBlocklist blocklist = null; //domaines bloques (filtrage)
+    private String sinkhole = null; //adresse renvoyee pour un domaine bloque (null = NXDOMAIN)
+    private OffHeapRecordStore cache = null; //cache des correspondances, hors du tas
+    private long cacheTTL = 300; //duree de vie d'une entree du fichier en cache, plafond du TTL des reponses amont (s)
+    private IterativeResolver resolver = null; //resolution iterative au lieu de la redirection
+    private RateLimiter rateLimiter = null; //limitation du debit par client
+    private QueryLog journal = null; //journal binaire des transactions
+    private AnswerRotation rotation = new AnswerRotation(AnswerRotation.Politique.TOURNIQUET); //ordre des adresses des reponses
+    private final ServerStats stats = new ServerStats();
+    private volatile View vueDefaut = null; //vue de la configuration principale
+    private final List<View> vues = new ArrayList<>(); //vues choisies par sous-reseau du client
+    private final PrefixTrie trieVues = new PrefixTrie(); //prefixe -> indice dans vues
+    private DatagramSocket serveur = null; //socket d'ecoute, aussi utilise par les delais
+
+    // *Service de donnees perimees et delais des requetes redirigees (RFC 8767)
+    private long delaiStale = 1800; //attente de la reponse amont avant de servir des donnees perimees (ms)
+    private long ttlStale = 30; //TTL des reponses perimees (s)
+    private long delaiAbandon = 10000; //abandon d'une requete sans reponse amont (ms)
+    private RttEstimator estimateurRtt = new RttEstimator(1000, 50, 4000); //delai de relance par serveur amont
+    private final TimerWheel roue = new TimerWheel("UDPReceiver-delais", 10, 1024); //delais de toutes les requetes redirigees
 
     private class ClientInfo { //quick container
 
         public String client_ip = null;
         public int client_port = 0;
+        public InetAddress client_adresse = null;
+        public String hostname = null; //nom demande
+        public int qtype = 0; //type demande (QTYPE)
+        public View vue = null; //vue choisie pour le client
+        public byte[] requete = null; //requete du client, pour les relances
+        public long debut = 0; //reception de la requete (ms)
+        public long debutNano = 0; //reception de la requete, pour la latence du journal (ns)
+        public boolean perimeEssaye = false; //donnees perimees deja cherchees pour ce client
+        private boolean repondu = false; //reponse deja envoyee au client
+        private volatile UpstreamSocketPool.Envoi<ClientInfo> envoi = null; //requete en attente sur le groupe amont
+        private volatile TimerWheel.Delai delai = null; //prochaine verification (relance, perime, abandon)
+        private InetSocketAddress amont = null; //dernier serveur amont interroge
+        private int envois = 0; //nombre d'envois vers l'amont
+        private long dernierEnvoi = 0; //ms
+        private long relance = 0; //echeance de la prochaine relance (ms)
+
+        public synchronized void noterEnvoi(InetSocketAddress serveur, long maintenant, long rto) {
+            amont = serveur;
+            envois++;
+            dernierEnvoi = maintenant;
+            relance = maintenant + rto;
+        }
+
+        public synchronized InetSocketAddress getAmont() {
+            return amont;
+        }
+
+        public synchronized long getRelance() {
+            return relance;
+        }
+
+        /**
+         * @return le temps de reponse de l'amont, ou -1 s'il ne peut pas etre
+         * mesure (requete relancee, algorithme de Karn, ou reponse d'un autre serveur)
+         */
+        public synchronized long mesurerRtt(SocketAddress source, long maintenant) {
+            if (envois != 1 || !source.equals(amont)) {
+                return -1;
+            }
+            return maintenant - dernierEnvoi;
+        }
+
+        public synchronized boolean estRepondu() {
+            return repondu;
+        }
+
+        /**
+         * @return true si aucune reponse n'avait encore ete envoyee au client
+         */
+        public synchronized boolean marquerRepondu() {
+            boolean premier = !repondu;
+            repondu = true;
+            return premier;
+        }
     };
-    private final HashMap<Integer, ClientInfo> Clients = new HashMap<>();
+    private UpstreamSocketPool<ClientInfo> amont = null; //sockets vers les serveurs de redirection
+    private int nbSocketsAmont = 4;
+    private int renouvellementAmont = 1000; //envois par socket amont avant de changer de port (0 = jamais)
 
     private final boolean stop = false;
 
@@ -101,10 +182,133 @@ public class UDPReceiver extends Thread {
         DNSFile = filename;
     }
 
+    public void setBlocklist(DomainBlocklist blocklist) {
+        this.blocklist = blocklist;
+    }
+
+    public void setSinkhole(String sinkhole) {
+        this.sinkhole = sinkhole;
+    }
+
+    public void setCache(OffHeapRecordStore cache, long ttl) {
+        this.cache = cache;
+        this.cacheTTL = ttl;
+    }
+
+    /**
+     * @param delai : attente de la reponse amont avant de servir des donnees perimees (ms)
+     * @param ttl : TTL des reponses perimees (s)
+     * @param abandon : abandon d'une requete sans reponse amont (ms)
+     */
+    public void setServiceStale(long delai, long ttl, long abandon) {
+        this.delaiStale = delai;
+        this.ttlStale = ttl;
+        this.delaiAbandon = abandon;
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param estimateur : calcul des delais de relance vers les serveurs amont
+     */
+    public void setEstimateurRtt(RttEstimator estimateur) {
+        this.estimateurRtt = estimateur;
+    }
+
+    public RttEstimator getEstimateurRtt() {
+        return estimateurRtt;
+    }
+
+    /**
+     * @param rotation : politiques d'ordre des adresses dans les reponses
+     */
+    public void setRotation(AnswerRotation rotation) {
+        this.rotation = rotation;
+    }
+
+    /**
+     * @param journal : journal des transactions, demarre par le receveur
+     */
+    public void setJournal(QueryLog journal) {
+        this.journal = journal;
+    }
+
+    public QueryLog getJournal() {
+        return journal;
+    }
+
+    /**
+     * @param nombre : nombre de sockets vers les serveurs de redirection, chacun sur un port au hasard
+     */
+    public void setNbSocketsAmont(int nombre) {
+        this.nbSocketsAmont = nombre;
+    }
+
+    /**
+     * @param envois : requetes envoyees par un socket amont avant de le remplacer par un autre port (0 = jamais)
+     */
+    public void setRenouvellementAmont(int envois) {
+        this.renouvellementAmont = envois;
+    }
+
+    public UpstreamSocketPool<?> getSocketsAmont() {
+        return amont;
+    }
+
+    public void setResolver(IterativeResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public IterativeResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Ajoute une vue, choisie pour les clients de ses prefixes.
+     * Doit etre appele avant le lancement du thread
+     * @param vue : vue a ajouter
+     * @throws UnknownHostException si un prefixe est invalide
+     */
+    public void ajouterVue(View vue) throws UnknownHostException {
+        for (String prefixe : vue.getPrefixes()) {
+            trieVues.ajouter(prefixe, vues.size());
+        }
+        vues.add(vue);
+    }
+
+    /**
+     * @return la vue par defaut (si le serveur est lance) suivie des autres vues
+     */
+    public List<View> getVues() {
+        List<View> liste = new ArrayList<>();
+        if (vueDefaut != null) {
+            liste.add(vueDefaut);
+        }
+        liste.addAll(vues);
+        return liste;
+    }
+
+    public DomainBlocklist getBlocklist() {
+        return blocklist;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
     @Override
     public void run() {
         try {
-            DatagramSocket serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+            vueDefaut = new View(View.DEFAUT, DNSFile, SERVER_DNS, portRedirect, cache);
+            serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+            roue.start();
+            amont = new UpstreamSocketPool<>(nbSocketsAmont, renouvellementAmont, this::traiterReponse);
+            amont.demarrer();
+            if (journal != null) {
+                journal.start();
+            }
 
             // *Boucle infinie de recpetion
             while (!this.stop) {
@@ -119,86 +323,115 @@ public class UDPReceiver extends Thread {
                 // *Creation d'un DataInputStream ou ByteArrayInputStream pour manipuler les bytes du paquet
                 ByteArrayInputStream TabInputStream = new ByteArrayInputStream(paquetRecu.getData());
 
-                int identifiant = getIdentifiant(TabInputStream);
+                // *L'identifiant du client est garde dans la requete, le groupe de sockets amont le remet dans la reponse
+                TabInputStream.skip(2);
 
                 // ****** Dans le cas d'un paquet requete *****
-                if (TabInputStream.read() == 1) {
-                    // *Lecture du Query Domain name, a partir du 13 byte
-                    TabInputStream.skip(10);
-                    initQueryDomainName(TabInputStream);
+                // (les reponses amont arrivent sur les sockets du groupe amont : une reponse recue ici est ignoree)
+                if ((TabInputStream.read() & QR_MASK) == 0) {
+                    // *Limitation du debit par client, des que l'en-tete est lu
+                    if (rateLimiter != null) {
+                        RateLimiter.Decision decision = rateLimiter.verifier(paquetRecu.getAddress());
+                        if (decision != RateLimiter.Decision.REPONDRE) {
+                            stats.incrementer(ServerStats.Compteur.LIMITEES);
+                            if (decision == RateLimiter.Decision.TRONQUER) {
+                                byte[] paquetTronque = UDPAnswerPacketCreator.getInstance().CreateTruncatedPacket(buff);
+                                serveur.send(new DatagramPacket(paquetTronque, paquetTronque.length, paquetRecu.getSocketAddress()));
+                            }
+                            continue;
+                        }
+                    }
+
+                    // *Lecture de la question (nom tel qu'envoye, '-' et '_' compris)
+                    DNSMessage question;
+                    try {
+                        question = DNSMessage.lireQuestion(buff, paquetRecu.getLength());
+                    } catch (IOException e) {
+                        continue; //requete mal formee
+                    }
+                    DomainName = AnswerRecorder.normaliser(question.getQuestion());
+                    int qtype = question.getQtype();
+                    stats.incrementer(ServerStats.Compteur.REQUETES);
 
                     // *Sauvegarde de l'adresse, du port et de l'identifiant de la requete
                     ClientInfo clientInfo = new ClientInfo();
                     clientInfo.client_ip = paquetRecu.getAddress().toString().substring(1);
                     clientInfo.client_port = paquetRecu.getPort();
-                    Clients.put(identifiant, clientInfo);
-
-                    // *Si le mode est redirection seulement
-                    if (RedirectionSeulement) {
-                        // *Rediriger le paquet vers le serveur DNS
-                        DatagramPacket packet = new DatagramPacket(buff, buff.length, new InetSocketAddress(SERVER_DNS, portRedirect));
-                        serveur.send(packet);
+                    clientInfo.client_adresse = paquetRecu.getAddress();
+                    clientInfo.hostname = DomainName;
+                    clientInfo.qtype = qtype;
+                    clientInfo.vue = selectionnerVue(paquetRecu.getAddress());
+                    clientInfo.requete = Arrays.copyOf(buff, paquetRecu.getLength());
+                    clientInfo.debut = System.currentTimeMillis();
+                    clientInfo.debutNano = System.nanoTime();
+
+                    // *Filtrage des domaines bloques, avant la decision locale / redirection
+                    if (blocklist != null && blocklist.estBloque(DomainName)) {
+                        stats.incrementer(ServerStats.Compteur.BLOQUEES);
+                        byte[] paquetBloque = (sinkhole == null)
+                                ? UDPAnswerPacketCreator.getInstance().CreateErrorPacket(buff, UDPAnswerPacketCreator.RCODE_NXDOMAIN)
+                                : UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(buff, Collections.singletonList(sinkhole));
+                        serveur.send(new DatagramPacket(paquetBloque, paquetBloque.length, paquetRecu.getSocketAddress()));
+                        journaliser(clientInfo, QueryLog.Source.BLOQUE, (sinkhole == null) ? UDPAnswerPacketCreator.RCODE_NXDOMAIN : DNSMessage.RCODE_OK);
+                    } else if (resolver != null && qtype != DNSMessage.TYPE_A) {
+                        // *Le resolveur iteratif ne suit que les enregistrements A : sans serveur
+                        // de redirection, les autres types ne sont pas pris en charge
+                        byte[] paquetRefuse = UDPAnswerPacketCreator.getInstance().CreateErrorPacket(buff, UDPAnswerPacketCreator.RCODE_NOTIMP);
+                        serveur.send(new DatagramPacket(paquetRefuse, paquetRefuse.length, paquetRecu.getSocketAddress()));
+                        journaliser(clientInfo, QueryLog.Source.ITERATIF, UDPAnswerPacketCreator.RCODE_NOTIMP);
+                    } else if (RedirectionSeulement || qtype != DNSMessage.TYPE_A) {
+                        // *Si le mode est redirection seulement, ou si le type demande n'est pas A
+                        // (le cache et le fichier DNS n'ont que des adresses IPv4) : rediriger le paquet vers le serveur DNS
+                        stats.incrementer(ServerStats.Compteur.REDIRECTIONS);
+                        rediriger(clientInfo);
                     } else {
-                        // *Rechercher l'adresse IP associe au Query Domain name dans le fichier de correspondance de ce serveur					
-                        List<String> ipFound = new ArrayList<>();
-                        if (DNSFile != null) {
-                            QueryFinder queryFinder = new QueryFinder(DNSFile);
-                            ipFound = queryFinder.StartResearch(DomainName);
+                        // *Rechercher l'adresse IP associe au Query Domain name dans le cache, puis dans le fichier de correspondance de la vue du client
+                        View vue = clientInfo.vue;
+                        long[] ttl = {cacheTTL}; //TTL de la reponse : duree de vie restante en cache, sinon cacheTTL
+                        List<String> ipFound = (vue.getCache() != null) ? vue.getCache().chercher(DomainName, ttl) : null;
+                        QueryLog.Source source = QueryLog.Source.CACHE;
+                        if (ipFound != null) {
+                            stats.incrementer(ServerStats.Compteur.REPONSES_CACHE);
+                        } else if (vue.getCache() != null && vue.getCache().estAmont(DomainName)) {
+                            // *Reponse amont expiree : la redemander (avec les donnees perimees si le serveur tarde)
+                            // au lieu de la relire dans le fichier DNS, ou elle n'expire jamais
+                            ipFound = new ArrayList<>();
+                        } else {
+                            source = QueryLog.Source.FICHIER;
+                            ipFound = new ArrayList<>();
+                            if (vue.getDNSFile() != null) {
+                                QueryFinder queryFinder = new QueryFinder(vue.getDNSFile());
+                                ipFound = queryFinder.StartResearch(DomainName);
+                            }
+                            // *Garder le resultat en cache pour ne pas relire le fichier a chaque requete
+                            if (!ipFound.isEmpty()) {
+                                stats.incrementer(ServerStats.Compteur.REPONSES_FICHIER);
+                                if (vue.getCache() != null) {
+                                    vue.getCache().enregistrer(DomainName, ipFound, cacheTTL);
+                                }
+                            }
                         }
 
                         // *Si la correspondance n'est pas trouvee
-                        if (ipFound.isEmpty()) {
+                        if (ipFound.isEmpty() && resolver != null) {
+                            // *Resoudre a partir des serveurs racines, sans serveur de redirection
+                            stats.incrementer(ServerStats.Compteur.RESOLUTIONS_ITERATIVES);
+                            resoudre(serveur, buff, clientInfo);
+                        } else if (ipFound.isEmpty()) {
                             // *Rediriger le paquet vers le serveur DNS
-                            DatagramPacket packet = new DatagramPacket(buff, buff.length, new InetSocketAddress(SERVER_DNS, portRedirect));
-                            serveur.send(packet);
+                            stats.incrementer(ServerStats.Compteur.REDIRECTIONS);
+                            rediriger(clientInfo);
                         } else {
                             // *Creer le paquet de reponse a l'aide du UDPAnswerPaquetCreator
-                            byte[] paquetReponse = UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(buff, ipFound);
-                            ClientInfo client = Clients.get(identifiant);
-                            DatagramPacket packet = new DatagramPacket(paquetReponse, paquetReponse.length, new InetSocketAddress(client.client_ip, client.client_port));
+                            byte[] paquetReponse = rotation.creerReponse(buff, DomainName, ipFound, ttl[0]);
+                            DatagramPacket packet = new DatagramPacket(paquetReponse, paquetReponse.length, new InetSocketAddress(clientInfo.client_ip, clientInfo.client_port));
 
                             // *Placer ce paquet dans le socket et Envoyer le paquet
                             serveur.send(packet);
+                            journaliser(clientInfo, source, DNSMessage.RCODE_OK);
                         }
                     }
 
-                    // ****** Dans le cas d'un paquet reponse *****
-                } else {
-                    // recuperer la valeur de ANCount
-                    TabInputStream.skip(3);
-                    int ANCount = getANCount(TabInputStream);
-
-                    // *Lecture du Query Domain name, a partir du 13 byte
-                    TabInputStream.skip(5);
-                    initQueryDomainName(TabInputStream);
-
-                    // *Passe par dessus Type et Class
-                    TabInputStream.skip(4);
-
-                    // *Passe par dessus les premiers champs du ressource record
-                    // pour arriver au ressource data qui contient l'adresse IP associe au hostname (dans le fond saut de 16 bytes)
-                    TabInputStream.skip(11);
-
-                    List<String> ipAddresses = getIpReponses(TabInputStream, ANCount);
-
-                    // *Capture de ou des adresse(s) IP (ANCOUNT est le nombre de r?ponses retourn?es)	
-                    // *Ajouter la ou les correspondance(s) dans le fichier DNS si elles ne y sont pas deja
-                    AnswerRecorder answer = new AnswerRecorder(DNSFile);
-
-                    ipAddresses.stream().forEach((ip) -> {
-                        if (enregistrerIp(ip)) {
-                            answer.StartRecord(DomainName, ip);
-                        }
-                    });
-
-                    // *Faire parvenir le paquet reponse au demandeur original, ayant emis une requete avec cet identifiant				
-                    // *Placer ce paquet dans le socket et Envoyer le paquet
-                    ClientInfo client = Clients.get(identifiant);
-                    byte[] paquetReponse = UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(buff, ipAddresses);
-
-                    if (paquetReponse != null && checkClientInfoNotNUll(client)) {
-                        serveur.send(new DatagramPacket(paquetReponse, paquetReponse.length, new InetSocketAddress(client.client_ip, client.client_port)));
-                    }
                 }
             }
         } catch (Exception e) {
@@ -207,103 +440,270 @@ public class UDPReceiver extends Thread {
         }
     }
 
-    private boolean enregistrerIp(String ip) {
-        QueryFinder queryFinder = new QueryFinder(DNSFile);
-        List<String> ipFound = queryFinder.StartResearch(DomainName);
-        
-        return !ipFound.contains(ip);
+    /**
+     * @return la vue du plus long prefixe contenant le client, ou la vue par defaut
+     */
+    private View selectionnerVue(InetAddress client) {
+        if (vues.isEmpty()) {
+            return vueDefaut;
+        }
+        int indice = trieVues.chercher(client);
+        return (indice < 0) ? vueDefaut : vues.get(indice);
     }
 
-    private boolean checkClientInfoNotNUll(ClientInfo client) {
-        return client != null && client.client_ip != null && client.client_port > 0;
+    /**
+     * Envoie la requete au serveur de redirection de la vue du client, puis
+     * planifie sa verification sur la roue de temporisation (voir verifierDelai)
+     */
+    private void rediriger(final ClientInfo client) {
+        try {
+            envoyerAmont(client, null);
+        } catch (IOException e) {
+            e.printStackTrace(System.err); //le client recevra SERVFAIL a l'abandon
+        }
+        planifierDelai(client);
     }
 
-    private int getIdentifiant(ByteArrayInputStream TabInputStream) {
-        int identifiant = 0;
+    /**
+     * Envoie la requete au serveur amont de plus petit RTO, par le groupe de sockets amont
+     * @param exclu : serveur a eviter s'il y en a un autre (bascule), ou null
+     */
+    private void envoyerAmont(ClientInfo client, InetSocketAddress exclu) throws IOException {
+        InetSocketAddress serveurAmont = estimateurRtt.choisir(client.vue.getServeurs(), exclu);
+        if (serveurAmont == null) {
+            return; //aucun serveur de redirection : SERVFAIL a l'abandon
+        }
+        client.noterEnvoi(serveurAmont, System.currentTimeMillis(), estimateurRtt.getRto(serveurAmont));
+        if (client.envoi == null) {
+            client.envoi = amont.envoyer(client.requete, serveurAmont, client);
+        } else {
+            amont.renvoyer(client.envoi, serveurAmont);
+        }
+    }
 
-        int identifiant1 = TabInputStream.read();
-        if (identifiant1 != 0) {
-            identifiant += identifiant1;
+    /**
+     * Reponse d'un serveur amont, acceptee par le groupe de sockets amont
+     * (meme socket, identifiant et question que la requete envoyee)
+     * @param client : client qui a pose la question
+     * @param buff : reponse, avec l'identifiant du client
+     * @param longueur : longueur de la reponse
+     * @param source : serveur qui a repondu
+     */
+    private void traiterReponse(ClientInfo client, byte[] buff, int longueur, SocketAddress source) {
+        // *Plus de relance ni d'abandon a verifier
+        TimerWheel.Delai delai = client.delai;
+        if (delai != null) {
+            delai.annuler();
         }
+        // *Seules les adresses IPv4 d'une question de type A vont dans le cache et le fichier DNS
+        List<String> ipAddresses = new ArrayList<>();
+        long ttl = cacheTTL;
+        boolean lisible = true;
+        int rcode;
+        try {
+            DNSMessage reponse = DNSMessage.lire(buff, longueur);
+            rcode = reponse.getRcode();
+            for (DNSMessage.Enregistrement enregistrement : reponse.getReponses()) {
+                if (enregistrement.type == DNSMessage.TYPE_A && client.qtype == DNSMessage.TYPE_A) {
+                    ipAddresses.add(enregistrement.donnee);
+                    ttl = Math.min(ttl, enregistrement.ttl);
+                }
+            }
+        } catch (IOException e) {
+            rcode = UDPAnswerPacketCreator.RCODE_SERVFAIL; //reponse illisible
+            lisible = false;
+        }
+        stats.incrementer(ServerStats.Compteur.REPONSES_AMONT);
 
-        identifiant = identifiant << 8;
+        long mesure = client.mesurerRtt(source, System.currentTimeMillis());
+        if (mesure >= 0) {
+            estimateurRtt.mesurer(client.getAmont(), mesure);
+        }
 
-        int identifiant2 = TabInputStream.read();
-        if (identifiant2 != 0) {
-            identifiant += identifiant2;
+        // *La reponse est gardee dans la vue du client qui a pose la question
+        View vue = client.vue;
+        if (vue.getCache() != null) {
+            vue.getCache().enregistrer(client.hostname, ipAddresses, ttl, true);
         }
 
-        return identifiant;
+        // *Ajouter la ou les correspondance(s) dans le fichier DNS si elles ne y sont pas deja
+        enregistrer(vue, client.hostname, ipAddresses);
+
+        // *Faire parvenir le paquet reponse au demandeur original, tel que recu (l'identifiant du client
+        // y est deja remis) : tous les types d'enregistrement et les TTL du serveur amont sont conserves
+        // (sauf s'il a deja recu des donnees perimees, la reponse sert alors seulement a rafraichir le cache)
+        if (checkClientInfoNotNUll(client) && client.marquerRepondu()) {
+            QueryLog.Source origine = QueryLog.Source.AMONT;
+            byte[] paquetReponse = null;
+            if (rcode != DNSMessage.RCODE_OK && rcode != UDPAnswerPacketCreator.RCODE_NXDOMAIN
+                    && client.qtype == DNSMessage.TYPE_A) {
+                // *Echec du serveur amont : les donnees perimees valent mieux qu'une erreur
+                paquetReponse = creerReponsePerimee(vue, client.hostname, client.requete);
+                if (paquetReponse != null) {
+                    origine = QueryLog.Source.PERIME;
+                    rcode = DNSMessage.RCODE_OK;
+                }
+            }
+            if (paquetReponse == null) {
+                paquetReponse = lisible ? Arrays.copyOf(buff, longueur)
+                        : UDPAnswerPacketCreator.getInstance().CreateErrorPacket(client.requete, rcode);
+            }
+            try {
+                serveur.send(new DatagramPacket(paquetReponse, paquetReponse.length, new InetSocketAddress(client.client_adresse, client.client_port)));
+                journaliser(client, origine, rcode);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
     }
 
-    private int getANCount(ByteArrayInputStream TabInputStream) {
-        int ANCount = 0;
+    /**
+     * @return true tant que la requete n'a ni recu de reponse amont ni ete abandonnee
+     */
+    private boolean estEnAttente(ClientInfo client) {
+        UpstreamSocketPool.Envoi<ClientInfo> envoi = client.envoi;
+        return (envoi == null) ? !client.estRepondu() : amont.estEnAttente(envoi);
+    }
 
-        int tmpByte = TabInputStream.read();
-        if (tmpByte != 0) {
-            ANCount += tmpByte;
+    /**
+     * Planifie la prochaine verification : relance, donnees perimees ou abandon,
+     * selon la premiere echeance
+     */
+    private void planifierDelai(final ClientInfo client) {
+        long echeance = client.debut + delaiAbandon;
+        if (client.getAmont() != null) {
+            echeance = Math.min(echeance, client.getRelance());
         }
-        ANCount = ANCount << 8;
-        tmpByte = TabInputStream.read();
-        if (tmpByte != 0) {
-            ANCount += tmpByte;
+        if (!client.perimeEssaye) {
+            echeance = Math.min(echeance, client.debut + delaiStale);
         }
-
-        return ANCount;
+        client.delai = roue.planifier(echeance - System.currentTimeMillis(), () -> verifierDelai(client));
     }
 
-    private void initQueryDomainName(ByteArrayInputStream TabInputStream) {
-        int tmpbyte = (char) TabInputStream.read();
-        StringBuilder stringBUilder = new StringBuilder();
-        DomainName = "";
-
-        while (tmpbyte != 0) {
-            //http://www.codeproject.com/Articles/46603/A-PicRS-control-with-a-PIC-microcontroller-seri
-            //Transformer nimporte quelle caractere entre 0 - 46 en '.'. Octet 00 marque la fin donc tmpByte = 0
-            if (tmpbyte != 0 && tmpbyte < 46) {
-                tmpbyte = 46;
+    /**
+     * Appele tant que le serveur amont n'a pas repondu. Apres le RTO du
+     * serveur, la requete est relancee, vers un autre serveur s'il y en a.
+     * Apres delaiStale, le client recoit des donnees perimees s'il y en a
+     * (TTL ttlStale). Un client qui n'a rien recu a delaiAbandon recoit
+     * SERVFAIL au lieu d'attendre son propre delai.
+     */
+    private void verifierDelai(final ClientInfo client) {
+        if (!estEnAttente(client)) {
+            return; //reponse deja recue
+        }
+        long maintenant = System.currentTimeMillis();
+        long ecoule = maintenant - client.debut;
+        try {
+            if (ecoule >= delaiAbandon) {
+                if (client.envoi != null && !amont.annuler(client.envoi)) {
+                    return; //la reponse vient d'arriver
+                }
+                if (client.marquerRepondu()) {
+                    stats.incrementer(ServerStats.Compteur.ECHECS_AMONT);
+                    byte[] paquetErreur = UDPAnswerPacketCreator.getInstance().CreateErrorPacket(client.requete, UDPAnswerPacketCreator.RCODE_SERVFAIL);
+                    serveur.send(new DatagramPacket(paquetErreur, paquetErreur.length, new InetSocketAddress(client.client_ip, client.client_port)));
+                    journaliser(client, QueryLog.Source.AMONT, UDPAnswerPacketCreator.RCODE_SERVFAIL);
+                }
+                return;
             }
-
-            if (tmpbyte != 0) {
-                stringBUilder.append(Character.toString((char) tmpbyte));
+            if (!client.perimeEssaye && ecoule >= delaiStale) {
+                client.perimeEssaye = true;
+                if (!client.estRepondu() && client.qtype == DNSMessage.TYPE_A) {
+                    byte[] paquetPerime = creerReponsePerimee(client.vue, client.hostname, client.requete);
+                    if (paquetPerime != null && client.marquerRepondu()) {
+                        serveur.send(new DatagramPacket(paquetPerime, paquetPerime.length, new InetSocketAddress(client.client_ip, client.client_port)));
+                        journaliser(client, QueryLog.Source.PERIME, DNSMessage.RCODE_OK);
+                    }
+                }
             }
-
-            tmpbyte = (char) TabInputStream.read();
+            InetSocketAddress precedent = client.getAmont();
+            if (precedent != null && maintenant >= client.getRelance()) {
+                estimateurRtt.expirer(precedent);
+                stats.incrementer(ServerStats.Compteur.RELANCES_AMONT);
+                envoyerAmont(client, precedent);
+                if (!precedent.equals(client.getAmont())) {
+                    stats.incrementer(ServerStats.Compteur.BASCULES_AMONT);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
         }
+        planifierDelai(client);
+    }
 
-        DomainName = stringBUilder.toString();
+    /**
+     * @return une reponse construite a partir des donnees perimees du cache, ou null s'il n'y en a pas
+     */
+    private byte[] creerReponsePerimee(View vue, String hostname, byte[] requete) {
+        List<String> perime = (vue.getCache() != null) ? vue.getCache().chercherPerime(hostname) : null;
+        if (perime == null || perime.isEmpty()) {
+            return null;
+        }
+        stats.incrementer(ServerStats.Compteur.REPONSES_PERIMEES);
+        return rotation.creerReponse(requete, hostname, perime, ttlStale);
     }
 
-    private List<String> getIpReponses(ByteArrayInputStream TabInputStream, int ANCount) {
-        String[] tmpIpAddresses = new String[ANCount];
-        List<String> ipAddresses = new ArrayList<>();
-        int nbIp = 0;
-        int index = 0;
-
-        while (nbIp < ANCount) {
-            // 4 octect pour une adresse IPV4
-            int rdLength = TabInputStream.read();
-            if (rdLength == 4) {
-                tmpIpAddresses[index] = "";
-                for (int i = 0; i < 4; i++) {
-                    tmpIpAddresses[index] += Integer.toString(TabInputStream.read());
-                    if (i < 3) {
-                        tmpIpAddresses[index] += ".";
-                    }
+    /**
+     * Resolution iterative en arriere-plan, la reponse est envoyee au client
+     * depuis le thread de resolution
+     * @param serveur : socket du serveur
+     * @param requete : paquet de la requete du client
+     * @param client : client et vue de la requete
+     */
+    private void resoudre(final DatagramSocket serveur, final byte[] requete, final ClientInfo client) {
+        final View vue = client.vue;
+        final String hostname = client.hostname;
+        resolver.resoudreAsync(hostname).thenAccept((resultat) -> {
+            byte[] paquetReponse;
+            QueryLog.Source source = QueryLog.Source.ITERATIF;
+            int rcode = resultat.rcode;
+            if (!resultat.adresses.isEmpty()) {
+                if (vue.getCache() != null) {
+                    vue.getCache().enregistrer(hostname, resultat.adresses, Math.min(resultat.ttl, cacheTTL), true);
                 }
-                index++;
-                TabInputStream.skip(11);
+                enregistrer(vue, hostname, resultat.adresses);
+                paquetReponse = rotation.creerReponse(requete, hostname, resultat.adresses, Math.min(resultat.ttl, cacheTTL));
+                rcode = DNSMessage.RCODE_OK;
             } else {
-                TabInputStream.skip(11 + rdLength);
+                // *Echec de la resolution : les donnees perimees valent mieux qu'un SERVFAIL
+                paquetReponse = (resultat.rcode == UDPAnswerPacketCreator.RCODE_SERVFAIL)
+                        ? creerReponsePerimee(vue, hostname, requete) : null;
+                if (paquetReponse == null) {
+                    paquetReponse = UDPAnswerPacketCreator.getInstance().CreateErrorPacket(requete, resultat.rcode);
+                } else {
+                    source = QueryLog.Source.PERIME;
+                    rcode = DNSMessage.RCODE_OK;
+                }
+            }
+            try {
+                serveur.send(new DatagramPacket(paquetReponse, paquetReponse.length, new InetSocketAddress(client.client_adresse, client.client_port)));
+                journaliser(client, source, rcode);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
             }
-            nbIp++;
+        });
+    }
+
+    private void journaliser(ClientInfo client, QueryLog.Source source, int rcode) {
+        if (journal != null) {
+            journal.journaliser(client.client_adresse, client.client_port, client.hostname, client.requete,
+                    source, rcode, System.nanoTime() - client.debutNano);
         }
+    }
 
-        // Supprimer les string null s'il y en a
-        for (int i = 0; i < index; i++) {
-            ipAddresses.add(tmpIpAddresses[i]);
+    /**
+     * Ajoute les correspondances absentes du fichier DNS de la vue
+     */
+    private void enregistrer(View vue, String hostname, List<String> ipAddresses) {
+        if (vue.getDNSFile() == null) {
+            return;
         }
+        AnswerRecorder answer = new AnswerRecorder(vue.getDNSFile());
 
-        return ipAddresses;
+        ipAddresses.stream().forEach((ip) -> answer.StartRecordIfAbsent(hostname, ip));
+    }
+
+    private boolean checkClientInfoNotNUll(ClientInfo client) {
+        return client != null && client.client_ip != null && client.client_port > 0;
     }
 }
@@ -0,0 +1,289 @@
+package dns;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sockets reserves aux echanges avec les serveurs amont, separes du socket
+ * qui recoit les requetes des clients.
+ *
+ * Chaque socket est lie a un port source tire au hasard et a son propre
+ * thread de reception. Une requete part sur un socket tire au hasard avec un
+ * identifiant tire au hasard (l'identifiant du client est remis dans la
+ * reponse). Une reponse n'est acceptee que si elle arrive sur ce socket, avec
+ * cet identifiant, la meme question (nom, type, classe) et depuis un serveur
+ * a qui la requete a ete envoyee : il faut deviner le port, l'identifiant et
+ * le socket pour injecter une fausse reponse.
+ *
+ * Apres renouvellement envois, un socket est remplace par un nouveau sur un
+ * autre port tire au hasard : un port observe ne sert pas longtemps. L'ancien
+ * socket recoit encore les reponses de ses requetes en attente, puis il est
+ * ferme.
+ *
+ * @param <T> contexte de la requete, rendu avec la reponse
+ */
+public class UpstreamSocketPool<T> {
+
+    /**
+     * Appele depuis le thread de reception du socket pour chaque reponse acceptee
+     */
+    public interface Receveur<T> {
+
+        /**
+         * @param contexte : contexte donne a envoyer
+         * @param reponse : reponse, avec l'identifiant de la requete du client
+         * @param longueur : longueur de la reponse
+         * @param source : serveur qui a repondu
+         */
+        void recevoir(T contexte, byte[] reponse, int longueur, SocketAddress source);
+    }
+
+    private static final int ATTENTE_FERMETURE = 1000; //ms, attente maximale d'une reception
+
+    /**
+     * Socket sur un port tire au hasard, avec ses requetes en attente
+     */
+    private static final class Canal<T> {
+
+        final DatagramSocket socket;
+        final ConcurrentHashMap<Integer, Envoi<T>> enAttente = new ConcurrentHashMap<>(); //cle = identifiant
+        final AtomicInteger envois = new AtomicInteger();
+        volatile boolean remplace = false;
+
+        Canal(DatagramSocket socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Requete en attente de reponse
+     */
+    public static final class Envoi<T> {
+
+        private final Canal<T> canal;
+        private final int identifiant; //identifiant de la requete envoyee
+        private final int identifiantClient; //identifiant de la requete du client
+        private final byte[] paquet;
+        private final String question;
+        private final int qtype;
+        private final int qclass;
+        private final Set<SocketAddress> serveurs = ConcurrentHashMap.newKeySet(); //serveurs interroges
+        private final T contexte;
+
+        private Envoi(Canal<T> canal, int identifiant, byte[] requete, DNSMessage message, T contexte) {
+            this.canal = canal;
+            this.identifiant = identifiant;
+            this.identifiantClient = message.getIdentifiant();
+            this.paquet = requete.clone();
+            this.paquet[0] = (byte) (identifiant >> 8);
+            this.paquet[1] = (byte) identifiant;
+            this.question = message.getQuestion();
+            this.qtype = message.getQtype();
+            this.qclass = message.getQclass();
+            this.contexte = contexte;
+        }
+    }
+
+    private final AtomicReferenceArray<Canal<T>> canaux;
+    private final int renouvellement; //envois par socket avant de changer de port (0 = jamais)
+    private final Receveur<T> receveur;
+    private final SecureRandom hasard = new SecureRandom();
+    private final LongAdder rejetees = new LongAdder();
+    private final LongAdder renouvellements = new LongAdder();
+    private volatile boolean demarre = false;
+
+    /**
+     * Ouvre les sockets sur des ports tires au hasard
+     * @param nbSockets : nombre de sockets
+     * @param renouvellement : envois par socket avant de le remplacer par un autre port (0 = jamais)
+     * @param receveur : traitement des reponses acceptees
+     * @throws IOException si un socket ne peut pas etre ouvert
+     */
+    public UpstreamSocketPool(int nbSockets, int renouvellement, Receveur<T> receveur) throws IOException {
+        this.receveur = receveur;
+        this.renouvellement = renouvellement;
+        this.canaux = new AtomicReferenceArray<>(Math.max(1, nbSockets));
+        for (int i = 0; i < canaux.length(); i++) {
+            canaux.set(i, new Canal<>(ouvrir()));
+        }
+    }
+
+    private DatagramSocket ouvrir() throws IOException {
+        DatagramSocket socket = null;
+        for (int essai = 0; essai < 32 && socket == null; essai++) {
+            int port = 1024 + hasard.nextInt(65536 - 1024);
+            try {
+                socket = new DatagramSocket(port);
+            } catch (BindException e) {
+                // *port deja pris, on en tire un autre
+            }
+        }
+        if (socket == null) {
+            socket = new DatagramSocket(0); //port ephemere choisi par le systeme
+        }
+        socket.setSoTimeout(ATTENTE_FERMETURE); //pour voir qu'un socket remplace n'a plus rien en attente
+        return socket;
+    }
+
+    /**
+     * Lance un thread de reception par socket
+     */
+    public void demarrer() {
+        demarre = true;
+        for (int i = 0; i < canaux.length(); i++) {
+            demarrer(canaux.get(i));
+        }
+    }
+
+    private void demarrer(Canal<T> canal) {
+        Thread t = new Thread(() -> recevoir(canal), "UpstreamSocketPool-" + canal.socket.getLocalPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Envoie la requete d'un client sur un socket et avec un identifiant tires au hasard
+     * @param requete : requete du client
+     * @param serveur : serveur amont
+     * @param contexte : rendu au receveur avec la reponse
+     * @return la requete en attente, pour la relancer ou l'annuler
+     * @throws IOException si la requete n'a pas de question lisible ou si l'envoi echoue
+     */
+    public Envoi<T> envoyer(byte[] requete, InetSocketAddress serveur, T contexte) throws IOException {
+        DNSMessage message = DNSMessage.lireQuestion(requete, requete.length);
+        Envoi<T> envoi;
+        int indice;
+        while (true) {
+            indice = hasard.nextInt(canaux.length());
+            Canal<T> canal = canaux.get(indice);
+            envoi = new Envoi<>(canal, hasard.nextInt(0x10000), requete, message, contexte);
+            if (canal.enAttente.putIfAbsent(envoi.identifiant, envoi) == null) {
+                break;
+            }
+        }
+        renvoyer(envoi, serveur);
+        if (envoi.canal.envois.incrementAndGet() == renouvellement) {
+            renouveler(indice, envoi.canal);
+        }
+        return envoi;
+    }
+
+    /**
+     * Remplace un socket par un nouveau sur un autre port tire au hasard ;
+     * l'ancien se ferme quand il n'a plus de requete en attente
+     */
+    private void renouveler(int indice, Canal<T> ancien) {
+        Canal<T> nouveau;
+        try {
+            nouveau = new Canal<>(ouvrir());
+        } catch (IOException e) {
+            System.err.println("Renouvellement du socket amont impossible : " + e.getMessage());
+            ancien.envois.set(0); //on reessaiera apres renouvellement envois
+            return;
+        }
+        canaux.set(indice, nouveau);
+        ancien.remplace = true;
+        renouvellements.increment();
+        if (demarre) {
+            demarrer(nouveau);
+        }
+    }
+
+    /**
+     * Envoie de nouveau une requete en attente, au meme serveur ou a un autre
+     */
+    public void renvoyer(Envoi<T> envoi, InetSocketAddress serveur) throws IOException {
+        envoi.serveurs.add(serveur);
+        envoi.canal.socket.send(new DatagramPacket(envoi.paquet, envoi.paquet.length, serveur));
+    }
+
+    public boolean estEnAttente(Envoi<T> envoi) {
+        return envoi.canal.enAttente.get(envoi.identifiant) == envoi;
+    }
+
+    /**
+     * @return true si la requete etait en attente : aucune reponse ne sera plus acceptee
+     */
+    public boolean annuler(Envoi<T> envoi) {
+        return envoi.canal.enAttente.remove(envoi.identifiant, envoi);
+    }
+
+    /**
+     * @return reponses rejetees (identifiant inconnu, mauvaise question ou mauvais serveur)
+     */
+    public long getRejetees() {
+        return rejetees.sum();
+    }
+
+    /**
+     * @return sockets remplaces par un autre port
+     */
+    public long getRenouvellements() {
+        return renouvellements.sum();
+    }
+
+    private void recevoir(Canal<T> canal) {
+        DatagramSocket socket = canal.socket;
+        byte[] buff = new byte[4096]; //reponses UDP jusqu'a la taille EDNS usuelle
+        while (true) {
+            DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+            try {
+                if (canal.remplace && canal.enAttente.isEmpty()) {
+                    socket.close();
+                    return;
+                }
+                socket.receive(paquet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                System.err.println("Socket amont ferme : " + e.getMessage());
+                return;
+            }
+            Envoi<T> envoi = accepter(canal, buff, paquet.getLength(), paquet.getSocketAddress());
+            if (envoi == null) {
+                rejetees.increment();
+                continue;
+            }
+            // *Rendre au client la reponse avec son propre identifiant
+            byte[] reponse = new byte[paquet.getLength()];
+            System.arraycopy(buff, 0, reponse, 0, reponse.length);
+            reponse[0] = (byte) (envoi.identifiantClient >> 8);
+            reponse[1] = (byte) envoi.identifiantClient;
+            try {
+                receveur.recevoir(envoi.contexte, reponse, reponse.length, paquet.getSocketAddress());
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * @return la requete a laquelle correspond la reponse (retiree de l'attente), ou null
+     */
+    private Envoi<T> accepter(Canal<T> canal, byte[] buff, int longueur, SocketAddress source) {
+        DNSMessage reponse;
+        try {
+            reponse = DNSMessage.lireQuestion(buff, longueur);
+        } catch (IOException e) {
+            return null;
+        }
+        Envoi<T> envoi = canal.enAttente.get(reponse.getIdentifiant());
+        if (envoi == null || !reponse.estReponse() || !envoi.serveurs.contains(source)
+                || !reponse.getQuestion().equalsIgnoreCase(envoi.question)
+                || reponse.getQtype() != envoi.qtype || reponse.getQclass() != envoi.qclass) {
+            return null;
+        }
+        return canal.enAttente.remove(envoi.identifiant, envoi) ? envoi : null;
+    }
+}
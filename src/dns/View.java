@@ -0,0 +1,143 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Vue (split-horizon) : fichier DNS, cache et serveur de redirection propres
+ * a un groupe de clients. Le serveur a toujours une vue "defaut", construite
+ * a partir de sa configuration principale, pour les clients qui ne sont dans
+ * aucun prefixe. Les autres vues sont choisies par un PrefixTrie selon
+ * l'adresse source de la requete.
+ */
+public class View {
+
+    public static final String DEFAUT = "defaut";
+    private static final int MIN_CACHE = 1024; //entrees du cache d'une vue au fichier DNS vide
+
+    private final String nom;
+    private final String dnsFile; //fichier DNS de la vue (null = aucun)
+    private final String serveurDNS; //serveur(s) de redirection de la vue, separes par des virgules
+    private final int portRedirect;
+    private final List<InetSocketAddress> serveurs; //serveurs de redirection, pour la bascule
+    private final OffHeapRecordStore cache; //cache de la vue (null = desactive)
+    private final List<String> prefixes = new ArrayList<>(); //clients de la vue
+
+    /**
+     * Constructeur
+     * @param nom : nom de la vue (ex interne)
+     * @param dnsFile : fichier DNS propre a la vue
+     * @param serveurDNS : serveur(s) de redirection propre(s) a la vue, "ip[:port]" separes par des virgules
+     * @param portRedirect : port par defaut des serveurs de redirection
+     * @param cache : cache propre a la vue, ou null
+     */
+    public View(String nom, String dnsFile, String serveurDNS, int portRedirect, OffHeapRecordStore cache) {
+        this.nom = nom;
+        this.dnsFile = dnsFile;
+        this.serveurDNS = serveurDNS;
+        this.portRedirect = portRedirect;
+        this.cache = cache;
+        this.serveurs = (serveurDNS == null) ? new ArrayList<>() : IterativeResolver.lireServeurs(serveurDNS, portRedirect);
+    }
+
+    public String getNom() {
+        return nom;
+    }
+
+    public String getDNSFile() {
+        return dnsFile;
+    }
+
+    public String getServeurDNS() {
+        return serveurDNS;
+    }
+
+    public int getPortRedirect() {
+        return portRedirect;
+    }
+
+    public List<InetSocketAddress> getServeurs() {
+        return serveurs;
+    }
+
+    public OffHeapRecordStore getCache() {
+        return cache;
+    }
+
+    public List<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Lit un fichier de vues, une vue par ligne :
+     *   nom fichierDNS serveurRedirection[,serveur...] prefixe[,prefixe...]
+     * ex : interne interne.txt 10.0.0.1 10.0.0.0/8,192.168.0.0/16,fd00::/8
+     * Les lignes vides et celles commencant par # sont ignorees.
+     * Le fichier DNS de chaque vue est cree s'il n'existe pas. Le cache d'une
+     * vue a deux fois plus d'entrees que son fichier DNS n'a de lignes (au
+     * moins MIN_CACHE), pour laisser de la place aux reponses amont, dans la
+     * limite de capaciteCache.
+     * @param fichier : fichier de configuration des vues
+     * @param capaciteCache : entrees au plus du cache de chaque vue (0 = sans cache)
+     * @param fenetreStale : fenetre de donnees perimees des caches (s)
+     * @return les vues lues, dans l'ordre du fichier
+     * @throws IOException
+     */
+    public static List<View> charger(String fichier, int capaciteCache, long fenetreStale) throws IOException {
+        List<View> vues = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(fichier));
+        try {
+            String ligne;
+            int numero = 0;
+            while ((ligne = reader.readLine()) != null) {
+                numero++;
+                ligne = ligne.trim();
+                if (ligne.isEmpty() || ligne.startsWith("#")) {
+                    continue;
+                }
+                String[] champs = ligne.split("\\s+");
+                if (champs.length != 4) {
+                    throw new IOException(fichier + ":" + numero + " : 4 champs attendus (nom fichierDNS serveur prefixes)");
+                }
+                File f = new File(champs[1]);
+                if (!f.exists()) {
+                    f.createNewFile();
+                }
+                OffHeapRecordStore cache = null;
+                if (capaciteCache > 0) {
+                    long taille = Math.max(MIN_CACHE, 2 * compterLignes(f));
+                    cache = new OffHeapRecordStore((int) Math.min(capaciteCache, taille));
+                    cache.setFenetreStale(fenetreStale);
+                }
+                View vue = new View(champs[0], champs[1], champs[2], 53, cache);
+                vue.prefixes.addAll(Arrays.asList(champs[3].split(",")));
+                vues.add(vue);
+            }
+        } finally {
+            reader.close();
+        }
+        return vues;
+    }
+
+    /**
+     * @return nombre de lignes du fichier DNS, en-tete compris
+     */
+    private static long compterLignes(File fichier) throws IOException {
+        long lignes = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(fichier));
+        try {
+            while (reader.readLine() != null) {
+                lignes++;
+            }
+        } finally {
+            reader.close();
+        }
+        return lignes;
+    }
+}